@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.util.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Java side of {@link Anycall#MODE_EXEC}: encoding the data as Base64 for the command line,
+ * and rebuilding the reply from the output lines of the binary, as one line and wrapped.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExecTransportBenchmark {
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private byte[] raw;
+
+    private String encoded;
+
+    private List<String> line;
+
+    private List<String> lines;
+
+    @Setup
+    public void setUp() {
+        raw = new byte[size];
+        new Random(1).nextBytes(raw);
+        encoded = Base64.encodeToString(raw, Base64.NO_WRAP);
+        line = Collections.singletonList(encoded);
+        lines = new ArrayList<>();
+        for (int i = 0; i < encoded.length(); i += 76) {
+            lines.add(encoded.substring(i, Math.min(i + 76, encoded.length())));
+        }
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encodeToString(raw, Base64.NO_WRAP);
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return Base64.decode(encoded, Base64.NO_WRAP);
+    }
+
+    @Benchmark
+    public Parcel rebuildReply() {
+        return ExecTransport.toReply(line);
+    }
+
+    @Benchmark
+    public Parcel rebuildWrappedReply() {
+        return ExecTransport.toReply(lines);
+    }
+}
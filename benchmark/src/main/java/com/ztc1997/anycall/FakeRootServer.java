@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import com.ztc1997.anycall.protocol.Batch;
+import com.ztc1997.anycall.protocol.BufferPool;
+import com.ztc1997.anycall.protocol.FrameCodec;
+import com.ztc1997.anycall.server.AnycallServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the root helper on a plain JVM. It answers the same frames, but every call is
+ * echoed back after sleeping for the configured service latency instead of reaching a system
+ * service. Pings report no capabilities, so clients never stream.
+ * <p>
+ * Run it in-process over a pair of pipes, or as a child process talking over stdin/stdout:
+ * <pre>
+ * java -cp ... com.ztc1997.anycall.FakeRootServer [latencyMicros]
+ * </pre>
+ */
+public class FakeRootServer {
+    private static final int WORKERS = 16;
+
+    private final FrameCodec codec;
+
+    private final long latencyMicros;
+
+    public FakeRootServer(InputStream in, OutputStream out, long latencyMicros) {
+        codec = new FrameCodec(in, out);
+        this.latencyMicros = latencyMicros;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long latencyMicros = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        System.out.write((AnycallServer.READY + "\n").getBytes());
+        System.out.flush();
+        new FakeRootServer(System.in, System.out, latencyMicros).serve();
+    }
+
+    /**
+     * Answers frames until the input ends.
+     */
+    public void serve() throws IOException {
+        final BufferPool pool = BufferPool.shared();
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        try {
+            while (codec.read()) {
+                final int id = codec.getId();
+                final byte type = codec.getType();
+                final int length = codec.getPayloadLength();
+
+                switch (type) {
+                    case FrameCodec.TYPE_PING:
+                        codec.write(id, FrameCodec.TYPE_REPLY, 0, null, null);
+                        break;
+
+                    case FrameCodec.TYPE_STATS:
+                        codec.write(id, FrameCodec.TYPE_REPLY, 0, null, new byte[20]);
+                        break;
+
+                    case FrameCodec.TYPE_ONEWAY:
+                        // Never answered
+                        break;
+
+                    case FrameCodec.TYPE_CALL:
+                    case FrameCodec.TYPE_BATCH:
+                        final byte[] payload = pool.acquire(length);
+                        System.arraycopy(codec.getPayload(), 0, payload, 0, length);
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (type == FrameCodec.TYPE_CALL) {
+                                        sleep();
+                                        codec.write(id, FrameCodec.TYPE_REPLY, 0, null, payload, length);
+                                    } else {
+                                        answerBatch(id, payload, length);
+                                    }
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                } finally {
+                                    pool.release(payload);
+                                }
+                            }
+                        });
+                        break;
+
+                    default:
+                        codec.write(id, FrameCodec.TYPE_REPLY, Anycall.ERROR_TRANSACTION_FAILED, null, null);
+                        break;
+                }
+            }
+        } finally {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            codec.close();
+        }
+    }
+
+    private void answerBatch(int id, byte[] payload, int length) throws IOException {
+        Batch replies;
+        try {
+            Batch calls = Batch.decode(payload, 0, length);
+            replies = new Batch(calls.size());
+            for (int i = 0; i < calls.size(); i++) {
+                sleep();
+                replies.set(i, null, 0, calls.payloads[i] == null ? null : Arrays.copyOfRange(
+                        calls.payloads[i], calls.offsets[i], calls.offsets[i] + calls.lengths[i]));
+            }
+        } catch (IOException e) {
+            codec.write(id, FrameCodec.TYPE_REPLY, Anycall.ERROR_MISSING_PARAMETERS, null, null);
+            return;
+        }
+        codec.write(id, FrameCodec.TYPE_REPLY, 0, null, replies.encode());
+    }
+
+    private void sleep() {
+        if (latencyMicros > 0) Pacing.sleepUntil(System.nanoTime() + latencyMicros * 1000);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import com.ztc1997.anycall.protocol.Batch;
+import com.ztc1997.anycall.protocol.FrameChannel;
+import com.ztc1997.anycall.protocol.FrameCodec;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * A session with a {@link FakeRootServer} of its own, plugged into {@link Anycall} in place of
+ * the root helper so load reaches the server through admission control, queueing, the session
+ * pool and the result cache like real calls do. The server runs in-process over a pair of
+ * pipes, or as a child process talking over stdin/stdout.
+ */
+class FakeSession implements Transport {
+    private final long latencyMicros;
+
+    private final boolean subprocess;
+
+    private FrameChannel channel;
+
+    private Process process;
+
+    private volatile DeathListener deathListener;
+
+    private FakeSession(long latencyMicros, boolean subprocess) {
+        this.latencyMicros = latencyMicros;
+        this.subprocess = subprocess;
+    }
+
+    /**
+     * @param latencyMicros The service latency of the servers
+     */
+    static Transport.Factory factory(final long latencyMicros, final boolean subprocess) {
+        return new Transport.Factory() {
+            @Override
+            public Transport create() {
+                return new FakeSession(latencyMicros, subprocess);
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void start(@Nullable Anycall.StartShellListener listener) {
+        final FrameChannel channel;
+        try {
+            channel = open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            stop();
+            if (listener != null) listener.onFinish(false);
+            return;
+        }
+
+        new Thread("fake-session") {
+            @Override
+            public void run() {
+                read(channel);
+            }
+        }.start();
+        if (listener != null) listener.onFinish(true);
+    }
+
+    @Override
+    public void stop() {
+        FrameChannel channel;
+        Process process;
+        synchronized (this) {
+            channel = this.channel;
+            process = this.process;
+            this.channel = null;
+            this.process = null;
+        }
+        if (channel != null) channel.close();
+        if (process != null) process.destroy();
+    }
+
+    @Override
+    public void transact(String serviceName, int code, Parcel data, final ReplyCallback callback) {
+        byte[] payload = data.marshall();
+        FrameChannel.ReplyHandler handler = new FrameChannel.ReplyHandler() {
+            @Override
+            public void onReply(int resultCode, byte[] payload, int payloadLength) {
+                callback.onReply(resultCode, resultCode == 0 ? toReply(payload, 0, payloadLength) : null);
+            }
+        };
+        if (send(FrameCodec.TYPE_CALL, code, serviceName, payload, handler) == 0)
+            callback.onReply(Anycall.ERROR_TRANSACTION_FAILED, null);
+    }
+
+    @Override
+    public void transact(String[] serviceNames, int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        final int size = codes.length;
+        Batch calls = new Batch(size);
+        for (int i = 0; i < size; i++) {
+            calls.set(i, serviceNames[i], codes[i], data[i].marshall());
+        }
+
+        FrameChannel.ReplyHandler handler = new FrameChannel.ReplyHandler() {
+            @Override
+            public void onReply(int resultCode, byte[] payload, int payloadLength) {
+                Batch replies = null;
+                if (resultCode == 0 && payload != null) try {
+                    replies = Batch.decode(payload, 0, payloadLength);
+                    if (replies.size() != size) replies = null;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                int[] resultCodes = new int[size];
+                Parcel[] parcels = new Parcel[size];
+                for (int i = 0; i < size; i++) {
+                    resultCodes[i] = replies == null ? Anycall.ERROR_TRANSACTION_FAILED : replies.codes[i];
+                    if (resultCodes[i] == 0)
+                        parcels[i] = toReply(replies.payloads[i], replies.offsets[i], replies.lengths[i]);
+                }
+                callback.onReply(resultCodes, parcels);
+            }
+        };
+        if (send(FrameCodec.TYPE_BATCH, 0, null, calls.encode(), handler) == 0)
+            handler.onReply(Anycall.ERROR_TRANSACTION_FAILED, null, 0);
+    }
+
+    @Override
+    public void transactOneway(String serviceName, int code, Parcel data) {
+        Batch calls = new Batch(1);
+        calls.set(0, serviceName, code, data.marshall());
+        byte[] payload = calls.encode();
+        FrameChannel channel;
+        synchronized (this) {
+            channel = this.channel;
+        }
+        if (channel != null)
+            channel.sendOneway(FrameCodec.TYPE_ONEWAY, 0, null, payload, payload.length);
+    }
+
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        callback.onStats(null);
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    private FrameChannel open() throws IOException {
+        InputStream in;
+        OutputStream out;
+        if (subprocess) {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    FakeRootServer.class.getName(), String.valueOf(latencyMicros))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            synchronized (this) {
+                process = p;
+            }
+            in = p.getInputStream();
+            out = p.getOutputStream();
+            if (!HelperTransport.awaitReady(in)) throw new IOException("The server did not start");
+        } else {
+            PipedInputStream serverIn = new PipedInputStream(64 * 1024);
+            PipedInputStream clientIn = new PipedInputStream(64 * 1024);
+            in = clientIn;
+            out = new PipedOutputStream(serverIn);
+            serve(new FakeRootServer(serverIn, new PipedOutputStream(clientIn), latencyMicros));
+        }
+
+        FrameChannel channel = new FrameChannel(new FrameCodec(in, out), null, Anycall.ERROR_SESSION_DIED);
+        channel.ping();
+        synchronized (this) {
+            this.channel = channel;
+        }
+        return channel;
+    }
+
+    private static void serve(final FakeRootServer server) {
+        Thread thread = new Thread("fake-root-server") {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    // Expected once the client closes its end
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Reads replies until the server is gone, then reports the death unless it was stopped.
+     */
+    private void read(FrameChannel channel) {
+        try {
+            channel.run();
+        } catch (IOException e) {
+            // Reported below
+        }
+
+        boolean died;
+        Process process = null;
+        synchronized (this) {
+            died = this.channel == channel;
+            if (died) {
+                process = this.process;
+                this.channel = null;
+                this.process = null;
+            }
+        }
+        if (process != null) process.destroy();
+        DeathListener deathListener = this.deathListener;
+        if (died && deathListener != null) deathListener.onDied();
+    }
+
+    /**
+     * @return 0 if the session is not running
+     */
+    private int send(byte type, int code, @Nullable String serviceName, byte[] payload,
+                     FrameChannel.ReplyHandler handler) {
+        FrameChannel channel;
+        synchronized (this) {
+            channel = this.channel;
+        }
+        return channel == null ? 0 : channel.send(type, code, serviceName, payload, payload.length, handler);
+    }
+
+    private static Parcel toReply(@Nullable byte[] payload, int offset, int length) {
+        Parcel reply = ReplyParcels.obtain();
+        if (payload != null) reply.unmarshall(payload, offset, length);
+        reply.setDataPosition(0);
+        return reply;
+    }
+}
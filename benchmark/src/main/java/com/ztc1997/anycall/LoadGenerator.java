@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import com.ztc1997.anycall.protocol.TraceReader;
+import com.ztc1997.anycall.protocol.TraceRecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives {@link FakeRootServer}s with concurrent callers through an {@link Anycall} whose
+ * sessions are {@link FakeSession}s, so calls take the same path through admission control,
+ * queueing, the session pool and the result cache as with the root helper, and reports
+ * throughput and latency percentiles. Each caller makes its next call as soon as the previous
+ * one is answered.
+ * <pre>
+ * ./gradlew :benchmark:loadtest -Pargs='--callers=32 --latency=200 --sessions=2 --subprocess'
+ * </pre>
+ * Options: {@code --callers} (8), {@code --duration} seconds (10), {@code --warmup} seconds (2),
+ * {@code --latency} of the fake service in microseconds (100), {@code --payload} bytes (256),
+ * {@code --sessions} (1), {@code --max-in-flight} calls admitted at once (0 for unbounded),
+ * {@code --cache-ttl} of results in milliseconds (0 for no cache), {@code --keys} the number of
+ * distinct arguments the calls cycle through (0 for all distinct), and {@code --subprocess} to
+ * run the servers as child processes over stdin/stdout like the root helper instead of
+ * in-process over pipes.
+ * <p>
+ * With {@code --trace} the calls of a trace recorded by {@code Anycall#startTrace} are made
+ * instead, at the recorded pace multiplied by {@code --speed} (1, 0 for back to back).
+ */
+public class LoadGenerator {
+    private static final BinderMethod METHOD = new BinderMethod("com.example.IFake", "fake", "echo", 1);
+
+    private final Anycall anycall;
+
+    private final byte[] payload;
+
+    private final int keys;
+
+    private final AtomicInteger nextKey = new AtomicInteger();
+
+    private volatile boolean stopped;
+
+    /**
+     * Null during the warmup.
+     */
+    private volatile LatencyHistogram histogram;
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private LoadGenerator(Anycall anycall, int payloadSize, int keys) {
+        this.anycall = anycall;
+        payload = new byte[payloadSize];
+        this.keys = keys;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int callers = 8;
+        long durationSeconds = 10;
+        long warmupSeconds = 2;
+        long latencyMicros = 100;
+        int payloadSize = 256;
+        int sessions = 1;
+        int maxInFlight = 0;
+        long cacheTtlMillis = 0;
+        int keys = 0;
+        boolean subprocess = false;
+        File trace = null;
+        double speed = 1;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--callers=")) callers = Integer.parseInt(value);
+            else if (arg.startsWith("--duration=")) durationSeconds = Long.parseLong(value);
+            else if (arg.startsWith("--warmup=")) warmupSeconds = Long.parseLong(value);
+            else if (arg.startsWith("--latency=")) latencyMicros = Long.parseLong(value);
+            else if (arg.startsWith("--payload=")) payloadSize = Integer.parseInt(value);
+            else if (arg.startsWith("--sessions=")) sessions = Integer.parseInt(value);
+            else if (arg.startsWith("--max-in-flight=")) maxInFlight = Integer.parseInt(value);
+            else if (arg.startsWith("--cache-ttl=")) cacheTtlMillis = Long.parseLong(value);
+            else if (arg.startsWith("--keys=")) keys = Integer.parseInt(value);
+            else if (arg.equals("--subprocess")) subprocess = true;
+            else if (arg.startsWith("--trace=")) trace = new File(value);
+            else if (arg.startsWith("--speed=")) speed = Double.parseDouble(value);
+            else throw new IllegalArgumentException("Unknown option " + arg);
+        }
+
+        Anycall anycall = new Anycall(1024, FakeSession.factory(latencyMicros, subprocess));
+        anycall.setSessionCount(sessions);
+        if (maxInFlight > 0) anycall.setAdmissionControl(maxInFlight, Integer.MAX_VALUE, Anycall.OVERFLOW_BLOCK);
+        if (cacheTtlMillis > 0) anycall.setResultCacheTtl(METHOD, cacheTtlMillis, TimeUnit.MILLISECONDS);
+        if (!startShell(anycall)) throw new IOException("The server did not start");
+
+        if (trace != null) {
+            replay(anycall, trace, speed);
+            anycall.stopShell();
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(anycall, payloadSize, keys);
+        Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; i++) {
+            threads[i] = generator.new Caller(i);
+            threads[i].start();
+        }
+
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long measureStart = System.nanoTime();
+        generator.histogram = histogram;
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        generator.histogram = null;
+        long measured = System.nanoTime() - measureStart;
+
+        generator.stopped = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        anycall.stopShell();
+
+        LatencySnapshot snapshot = histogram.snapshot();
+        System.out.println("callers = " + callers + ", service latency = " + latencyMicros
+                + "us, payload = " + payloadSize + " bytes, sessions = " + sessions
+                + ", max in flight = " + (maxInFlight > 0 ? maxInFlight : "unbounded")
+                + ", cache ttl = " + cacheTtlMillis + "ms, keys = " + (keys > 0 ? keys : "all distinct")
+                + ", " + (subprocess ? "subprocess" : "in-process"));
+        System.out.printf("calls = %d, errors = %d, throughput = %.1f calls/s%n", snapshot.getCount(),
+                generator.errors.get(), snapshot.getCount() * 1e9 / measured);
+        print("latency", snapshot);
+    }
+
+    private static boolean startShell(Anycall anycall) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean();
+        anycall.startShell(new Anycall.StartShellListener() {
+            @Override
+            public void onFinish(boolean succeeded) {
+                success.set(succeeded);
+                started.countDown();
+            }
+        });
+        started.await();
+        return success.get();
+    }
+
+    private static void replay(Anycall anycall, File trace, double speed)
+            throws IOException, InterruptedException {
+        List<TraceRecord> records;
+        TraceReader traceReader = new TraceReader(new FileInputStream(trace));
+        try {
+            records = traceReader.readAll();
+        } finally {
+            traceReader.close();
+        }
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram recorded = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        int oneway = 0;
+        for (TraceRecord record : records) {
+            if (record.oneway) oneway++;
+        }
+        final CountDownLatch remaining = new CountDownLatch(records.size() - oneway);
+        long replayStart = System.nanoTime();
+        for (TraceRecord record : records) {
+            if (speed > 0) Pacing.sleepUntil(replayStart + (long) (record.startNanos / speed));
+
+            BinderMethod method = new BinderMethod(record.className, record.serviceName,
+                    record.methodName, record.code);
+            Parcel data = Parcel.obtain();
+            if (record.data != null) data.unmarshall(record.data, 0, record.data.length);
+            if (record.oneway) {
+                // Never answered, so they cannot be timed
+                anycall.callMethodOneway(method, data);
+                data.recycle();
+                continue;
+            }
+
+            recorded.record(record.durationNanos);
+            final long start = System.nanoTime();
+            anycall.callMethod(method, data, new Anycall.CallMethodResultListener() {
+                @Override
+                public boolean onResult(int resultCode, @Nullable Parcel reply) {
+                    histogram.record(System.nanoTime() - start);
+                    if (resultCode != 0) errors.incrementAndGet();
+                    remaining.countDown();
+                    return true;
+                }
+            });
+            data.recycle();
+        }
+        remaining.await();
+        long elapsed = System.nanoTime() - replayStart;
+
+        System.out.printf("trace = %s, speed = %s, calls = %d, oneway = %d, errors = %d, took %d ms%n",
+                trace, speed, records.size(), oneway, errors.get(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        print("replayed", histogram.snapshot());
+        print("recorded", recorded.snapshot());
+    }
+
+    private static void print(String label, LatencySnapshot snapshot) {
+        System.out.println(label + ": p50 = " + micros(snapshot.getPercentileNanos(0.5))
+                + "us, p99 = " + micros(snapshot.getPercentileNanos(0.99))
+                + "us, p999 = " + micros(snapshot.getPercentileNanos(0.999))
+                + "us, max = " + micros(snapshot.getMaxNanos())
+                + "us, mean = " + micros(snapshot.getMeanNanos()) + "us");
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private class Caller extends Thread implements Anycall.CallMethodResultListener {
+        private boolean replied;
+
+        private int resultCode;
+
+        Caller(int index) {
+            super("loadtest-caller-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                int key = nextKey.getAndIncrement();
+                Parcel data = Parcel.obtain();
+                data.writeInt(keys > 0 ? key % keys : key);
+                data.writeByteArray(payload);
+
+                long start = System.nanoTime();
+                synchronized (this) {
+                    replied = false;
+                }
+                anycall.callMethod(METHOD, data, this);
+                data.recycle();
+
+                int code;
+                try {
+                    synchronized (this) {
+                        while (!replied) wait();
+                        code = resultCode;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                LatencyHistogram histogram = LoadGenerator.this.histogram;
+                if (histogram == null) continue;
+                if (code == 0) histogram.record(System.nanoTime() - start);
+                else errors.incrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized boolean onResult(int resultCode, @Nullable Parcel reply) {
+            this.resultCode = resultCode;
+            replied = true;
+            notify();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits with sub-millisecond precision, which {@code Thread.sleep} rounds up to about a
+ * millisecond on most systems.
+ */
+final class Pacing {
+    /**
+     * Parking may overshoot by up to the timer slack of the system, the rest is spun.
+     */
+    private static final long SPIN_NANOS = 100000;
+
+    private Pacing() {
+    }
+
+    /**
+     * Parks until shortly before the deadline and spins for the last stretch.
+     *
+     * @param deadlineNanos In terms of {@link System#nanoTime()}
+     */
+    static void sleepUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transaction code lookups, from the cached table and from scanning a stub.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransactionCodesBenchmark {
+    private static final String SERVICE = TransactionCodesBenchmark.class.getName() + "$IService";
+
+    private static final String OTHER_SERVICE = TransactionCodesBenchmark.class.getName() + "$IOtherService";
+
+    private TransactionCodes cached;
+
+    private TransactionCodes evicting;
+
+    private boolean other;
+
+    @Setup
+    public void setUp() {
+        cached = new TransactionCodes(1024, null);
+        cached.get(SERVICE, "goToSleep");
+
+        // Room for one table only, so alternating lookups always scan
+        evicting = new TransactionCodes(IService.Stub.COUNT, null);
+    }
+
+    @Benchmark
+    public int hit() {
+        return cached.get(SERVICE, "goToSleep");
+    }
+
+    @Benchmark
+    public int unknownMethod() {
+        return cached.get(SERVICE, "noSuchMethod");
+    }
+
+    @Benchmark
+    public int miss() {
+        other = !other;
+        return evicting.get(other ? OTHER_SERVICE : SERVICE, "goToSleep");
+    }
+
+    /**
+     * Shaped like an AIDL interface, only its stub is looked at.
+     */
+    public interface IService {
+
+        abstract class Stub {
+            static final int COUNT = 8;
+
+            static final int TRANSACTION_acquireWakeLock = 1;
+            static final int TRANSACTION_releaseWakeLock = 2;
+            static final int TRANSACTION_updateWakeLockUids = 3;
+            static final int TRANSACTION_isWakeLockLevelSupported = 4;
+            static final int TRANSACTION_userActivity = 5;
+            static final int TRANSACTION_wakeUp = 6;
+            static final int TRANSACTION_goToSleep = 7;
+            static final int TRANSACTION_nap = 8;
+        }
+    }
+
+    public interface IOtherService {
+
+        abstract class Stub {
+            static final int TRANSACTION_getOpsForPackage = 1;
+            static final int TRANSACTION_setMode = 2;
+            static final int TRANSACTION_checkOperation = 3;
+            static final int TRANSACTION_noteOperation = 4;
+            static final int TRANSACTION_startOperation = 5;
+            static final int TRANSACTION_finishOperation = 6;
+            static final int TRANSACTION_goToSleep = 7;
+            static final int TRANSACTION_resetAllModes = 8;
+        }
+    }
+}
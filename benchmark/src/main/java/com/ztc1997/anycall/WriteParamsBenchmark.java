@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marshalling the arguments of the varargs call methods, which pick the write method of each
+ * argument through a chain of instanceof checks. Strings are found among the first checks,
+ * byte arrays only after the interfaces and most other types.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WriteParamsBenchmark {
+    private final Object[] scalars = {7, 1L << 40, "com.example.app"};
+
+    private final Object[] arrays = {new byte[64], new byte[64], new byte[64]};
+
+    private Parcel data;
+
+    @Setup
+    public void setUp() {
+        data = Parcel.obtain();
+    }
+
+    @Benchmark
+    public Parcel scalars() {
+        return write(scalars);
+    }
+
+    @Benchmark
+    public Parcel byteArrays() {
+        return write(arrays);
+    }
+
+    private Parcel write(Object[] params) {
+        data.setDataSize(0);
+        data.setDataPosition(0);
+        Anycall.writeParams(data, params, params.length);
+        return data;
+    }
+}
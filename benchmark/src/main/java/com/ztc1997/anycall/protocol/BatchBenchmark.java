@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a batch of calls, into fresh and into pooled buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BatchBenchmark {
+
+    @Param({"1", "16"})
+    public int size;
+
+    private Batch batch;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        batch = new Batch(size);
+        for (int i = 0; i < size; i++) {
+            batch.set(i, "appops", i + 1, new byte[256]);
+        }
+        encoded = batch.encode();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return batch.encode();
+    }
+
+    @Benchmark
+    public int encodePooled() {
+        BufferPool pool = BufferPool.shared();
+        byte[] out = pool.acquire(batch.encodedLength());
+        int length = batch.encode(out);
+        pool.release(out);
+        return length;
+    }
+
+    @Benchmark
+    public Batch decode() throws IOException {
+        return Batch.decode(encoded, 0, encoded.length);
+    }
+}
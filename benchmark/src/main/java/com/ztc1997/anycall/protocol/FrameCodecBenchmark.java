@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a request frame and decoding a reply frame, without the pipe in between.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+
+    @Param({"64", "4096", "262144"})
+    public int payloadSize;
+
+    private byte[] payload;
+
+    private FrameCodec writer;
+
+    private byte[] frames;
+
+    private ResettableInputStream input;
+
+    private FrameCodec reader;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = new byte[payloadSize];
+        writer = new FrameCodec(new ByteArrayInputStream(new byte[0]), new NullOutputStream());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new FrameCodec(new ByteArrayInputStream(new byte[0]), bos)
+                .write(1, FrameCodec.TYPE_REPLY, 0, null, payload);
+        frames = bos.toByteArray();
+        input = new ResettableInputStream(frames);
+        reader = new FrameCodec(input, new NullOutputStream());
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        writer.write(1, FrameCodec.TYPE_CALL, 7, "power", payload);
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        input.rewind();
+        reader.read();
+        return reader.getPayloadLength();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Serves the same frame forever, the codec never sees the end of the stream.
+     */
+    private static class ResettableInputStream extends ByteArrayInputStream {
+        ResettableInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        void rewind() {
+            if (pos == count) pos = 0;
+        }
+    }
+}
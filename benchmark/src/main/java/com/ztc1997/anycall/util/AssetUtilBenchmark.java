@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.util;
+
+import android.content.res.AssetManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking an extracted binary that is up to date, which every shell start does, and
+ * extracting it anew.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AssetUtilBenchmark {
+    private static final String ASSET = "anycall/sdk23-25/arm64/anycall";
+
+    private final AssetManager assets = new AssetManager() {
+        @Override
+        public InputStream open(String fileName) {
+            return new ByteArrayInputStream(binary);
+        }
+    };
+
+    private final byte[] binary = new byte[100 * 1024];
+
+    private File dir;
+
+    private File out;
+
+    private int version;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = File.createTempFile("anycall", "");
+        if (!dir.delete() || !dir.mkdir()) throw new IOException("Cannot create " + dir);
+        out = new File(dir, "anycall");
+        AssetUtil.extractAsset(assets, ASSET, out, "1");
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean upToDate() {
+        return AssetUtil.extractAsset(assets, ASSET, out, "1");
+    }
+
+    @Benchmark
+    public boolean extract() {
+        // A new version every time forces a copy
+        return AssetUtil.extractAsset(assets, ASSET, out, String.valueOf(++version));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * Stand-in for the platform class, which is pure Java as well: a table driven coder for the
+ * flags the library uses. Like the platform, decoding skips whitespace and stops at padding.
+ */
+public final class Base64 {
+    public static final int DEFAULT = 0;
+
+    public static final int NO_WRAP = 2;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64() {
+    }
+
+    /**
+     * @param flags Ignored, the output is never wrapped
+     */
+    public static String encodeToString(byte[] input, int flags) {
+        char[] out = new char[(input.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < input.length; i += 3) {
+            int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | input[i + 2] & 0xff;
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[bits >>> 12 & 0x3f];
+            out[o++] = ALPHABET[bits >>> 6 & 0x3f];
+            out[o++] = ALPHABET[bits & 0x3f];
+        }
+        int left = input.length - i;
+        if (left > 0) {
+            int bits = (input[i] & 0xff) << 16 | (left == 2 ? (input[i + 1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[bits >>> 12 & 0x3f];
+            out[o++] = left == 2 ? ALPHABET[bits >>> 6 & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the input is not valid Base64
+     */
+    public static byte[] decode(String str, int flags) {
+        byte[] out = new byte[str.length() / 4 * 3 + 2];
+        int o = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '=') break;
+            if (c == '\n' || c == '\r' || c == ' ' || c == '\t') continue;
+
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) throw new IllegalArgumentException("bad base-64");
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                out[o++] = (byte) (bits >> 16);
+                out[o++] = (byte) (bits >> 8);
+                out[o++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 1) throw new IllegalArgumentException("bad base-64");
+        if (count == 2) {
+            out[o++] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            out[o++] = (byte) (bits >> 10);
+            out[o++] = (byte) (bits >> 2);
+        }
+        return o == out.length ? out : Arrays.copyOf(out, o);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stand-in for the platform class, with the same eviction behaviour.
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<>(0, 0.75f, true);
+
+    private final int maxSize;
+
+    private int size;
+
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public final synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public final synchronized V put(K key, V value) {
+        size += sizeOf(key, value);
+        V previous = map.put(key, value);
+        if (previous != null) size -= sizeOf(key, previous);
+
+        while (size > maxSize && !map.isEmpty()) {
+            Map.Entry<K, V> eldest = map.entrySet().iterator().next();
+            map.remove(eldest.getKey());
+            size -= sizeOf(eldest.getKey(), eldest.getValue());
+        }
+        return previous;
+    }
+
+    public final synchronized Map<K, V> snapshot() {
+        return new LinkedHashMap<>(map);
+    }
+
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.chainfire.libsuperuser;
+
+import java.util.List;
+
+/**
+ * Stand-in for the part of libsuperuser the library uses, there is never a root shell.
+ */
+public class Shell {
+
+    public interface OnResult {
+        int WATCHDOG_EXIT = -1;
+
+        int SHELL_DIED = -2;
+
+        int SHELL_EXEC_FAILED = -3;
+
+        int SHELL_WRONG_UID = -4;
+    }
+
+    public interface OnCommandResultListener extends OnResult {
+        void onCommandResult(int commandCode, int exitCode, List<String> output);
+    }
+
+    public static class Builder {
+        public Builder useSU() {
+            return this;
+        }
+
+        public Builder setAutoHandler(boolean autoHandler) {
+            return this;
+        }
+
+        public Interactive open(OnCommandResultListener listener) {
+            throw new UnsupportedOperationException("No root shell on a plain JVM");
+        }
+    }
+
+    public static class Interactive {
+        public void addCommand(String command, int code, OnCommandResultListener listener) {
+        }
+
+        public boolean isRunning() {
+            return false;
+        }
+
+        public void close() {
+        }
+
+        public void kill() {
+        }
+    }
+}
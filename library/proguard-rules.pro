@@ -15,3 +15,8 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# The root helper is started by class name through app_process
+-keep class com.ztc1997.anycall.server.AnycallServer {
+    public static void main(java.lang.String[]);
+}
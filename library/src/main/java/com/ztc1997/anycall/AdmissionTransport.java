@@ -0,0 +1,396 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the number of calls in flight on another transport. Calls beyond the limit wait in
+ * one lane per priority, and are sent from the highest priority lane as replies come back.
+ * Once {@code capacity} calls are waiting, new calls are handled by the overflow policy.
+ * <p>
+ * The priority of a call is the one set on the calling thread with {@link #setPriority(int)}.
+ */
+class AdmissionTransport implements Transport {
+    static final int LANES = 3;
+
+    private final Transport transport;
+
+    private final Metrics metrics;
+
+    private final Object lock = new Object();
+
+    private final List<ArrayDeque<PendingCall>> lanes = new ArrayList<>(LANES);
+
+    private final ThreadLocal<Integer> priority = new ThreadLocal<>();
+
+    private int maxInFlight = Integer.MAX_VALUE;
+
+    private int capacity = Integer.MAX_VALUE;
+
+    private int policy = Anycall.OVERFLOW_FAIL;
+
+    private int inFlight;
+
+    private int waiting;
+
+    private long overflows;
+
+    private boolean draining;
+
+    AdmissionTransport(Transport transport, Metrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+        for (int i = 0; i < LANES; i++) {
+            lanes.add(new ArrayDeque<PendingCall>());
+        }
+    }
+
+    /**
+     * @see Anycall#setAdmissionControl(int, int, int)
+     */
+    void configure(int maxInFlight, int capacity, int policy) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight < 1");
+        if (capacity < 0) throw new IllegalArgumentException("capacity < 0");
+        if (policy != Anycall.OVERFLOW_BLOCK && policy != Anycall.OVERFLOW_FAIL
+                && policy != Anycall.OVERFLOW_DROP_OLDEST)
+            throw new IllegalArgumentException("Unknown overflow policy " + policy);
+
+        synchronized (lock) {
+            this.maxInFlight = maxInFlight;
+            this.capacity = capacity;
+            this.policy = policy;
+            lock.notifyAll();
+        }
+        drain();
+    }
+
+    /**
+     * Sets the priority of the calls made on the calling thread.
+     */
+    void setPriority(int priority) {
+        if (priority < Anycall.PRIORITY_INTERACTIVE || priority > Anycall.PRIORITY_BULK)
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        this.priority.set(priority);
+    }
+
+    int getPriority() {
+        Integer priority = this.priority.get();
+        return priority == null ? Anycall.PRIORITY_NORMAL : priority;
+    }
+
+    /**
+     * @return The number of calls waiting for a free slot in each lane, highest priority first
+     */
+    int[] getLaneDepths() {
+        synchronized (lock) {
+            int[] depths = new int[LANES];
+            for (int i = 0; i < LANES; i++) {
+                depths[i] = lanes.get(i).size();
+            }
+            return depths;
+        }
+    }
+
+    /**
+     * @return The number of calls that found the lanes full
+     */
+    long getOverflowCount() {
+        synchronized (lock) {
+            return overflows;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return transport.isRunning();
+    }
+
+    @Override
+    public void start(@Nullable Anycall.StartShellListener listener) {
+        transport.start(listener);
+    }
+
+    @Override
+    public void stop() {
+        transport.stop();
+
+        List<PendingCall> failed = new ArrayList<>();
+        synchronized (lock) {
+            for (ArrayDeque<PendingCall> lane : lanes) {
+                failed.addAll(lane);
+                lane.clear();
+            }
+            waiting = 0;
+            lock.notifyAll();
+        }
+        for (PendingCall call : failed) {
+            call.fail(Anycall.ERROR_TRANSACTION_FAILED);
+        }
+    }
+
+    @Override
+    public void transact(final String serviceName, final int code, final Parcel data,
+                         final ReplyCallback callback) {
+        submit(new PendingCall(getPriority()) {
+            private Parcel copy;
+
+            @Override
+            void retain() {
+                // The caller may recycle the data as soon as this method returns
+                copy = Parcels.copy(data);
+                queuedAt = metrics.start();
+            }
+
+            @Override
+            void send() {
+                if (copy != null) metrics.record(serviceName, code, MethodStats.PHASE_ADMISSION, queuedAt);
+                transport.transact(serviceName, code, copy != null ? copy : data,
+                        CallHandle.attach(CallHandle.of(callback), new ReplyCallback() {
+                            @Override
+                            public void onReply(int resultCode, @Nullable Parcel reply) {
+                                try {
+                                    callback.onReply(resultCode, reply);
+                                } finally {
+                                    release();
+                                }
+                            }
+                        }));
+                if (copy != null) copy.recycle();
+            }
+
+            @Override
+            void fail(int resultCode) {
+                if (copy != null) copy.recycle();
+                callback.onReply(resultCode, null);
+            }
+        });
+    }
+
+    @Override
+    public void transact(final String[] serviceNames, final int[] codes, final Parcel[] data,
+                         final BatchReplyCallback callback) {
+        submit(new PendingCall(getPriority()) {
+            private Parcel[] copies;
+
+            @Override
+            void retain() {
+                copies = new Parcel[data.length];
+                for (int i = 0; i < data.length; i++) {
+                    copies[i] = Parcels.copy(data[i]);
+                }
+            }
+
+            @Override
+            void send() {
+                transport.transact(serviceNames, codes, copies != null ? copies : data, new BatchReplyCallback() {
+                    @Override
+                    public void onReply(int[] resultCodes, Parcel[] replies) {
+                        try {
+                            callback.onReply(resultCodes, replies);
+                        } finally {
+                            release();
+                        }
+                    }
+                });
+                recycle();
+            }
+
+            @Override
+            void fail(int resultCode) {
+                recycle();
+                int[] resultCodes = new int[codes.length];
+                for (int i = 0; i < resultCodes.length; i++) {
+                    resultCodes[i] = resultCode;
+                }
+                callback.onReply(resultCodes, new Parcel[codes.length]);
+            }
+
+            private void recycle() {
+                if (copies == null) return;
+                for (Parcel copy : copies) {
+                    copy.recycle();
+                }
+            }
+        });
+    }
+
+    /**
+     * Oneway calls take no slot, nothing tells when they are done.
+     */
+    @Override
+    public void transactOneway(String serviceName, int code, Parcel data) {
+        transport.transactOneway(serviceName, code, data);
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        transport.setDeathListener(listener);
+    }
+
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        transport.getServiceCacheStats(callback);
+    }
+
+    /**
+     * Sends the call right away if a slot is free, otherwise queues it or applies the
+     * overflow policy.
+     */
+    private void submit(PendingCall call) {
+        boolean sendNow = false;
+        PendingCall rejected = null;
+        synchronized (lock) {
+            if (mustBlock()) {
+                overflows++;
+                while (mustBlock()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        rejected = call;
+                        break;
+                    }
+                }
+            }
+
+            if (rejected == null) {
+                if (waiting == 0 && inFlight < maxInFlight) {
+                    inFlight++;
+                    sendNow = true;
+                } else if (waiting < capacity) {
+                    enqueue(call);
+                } else {
+                    overflows++;
+                    rejected = policy == Anycall.OVERFLOW_DROP_OLDEST ? dropOldest(call) : call;
+                    if (rejected != call) enqueue(call);
+                }
+            }
+        }
+
+        if (sendNow) {
+            call.send();
+        } else if (rejected != null) {
+            rejected.fail(Anycall.ERROR_QUEUE_FULL);
+        } else {
+            // A slot may have been freed in the meantime
+            drain();
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return Whether a new call would have to be queued but the lanes are full, a call that
+     * can be sent right away never blocks, even with a capacity of 0
+     */
+    private boolean mustBlock() {
+        return policy == Anycall.OVERFLOW_BLOCK && waiting >= capacity
+                && (waiting > 0 || inFlight >= maxInFlight);
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void enqueue(PendingCall call) {
+        call.retain();
+        lanes.get(call.priority).addLast(call);
+        waiting++;
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return The oldest waiting call of the lowest priority not above that of the new call,
+     * or the new call itself if there is none
+     */
+    private PendingCall dropOldest(PendingCall call) {
+        for (int i = LANES - 1; i >= call.priority; i--) {
+            PendingCall oldest = lanes.get(i).pollFirst();
+            if (oldest != null) {
+                waiting--;
+                return oldest;
+            }
+        }
+        return call;
+    }
+
+    private void release() {
+        synchronized (lock) {
+            inFlight--;
+            // Wakes callers blocked while nothing was waiting
+            lock.notifyAll();
+        }
+        drain();
+    }
+
+    /**
+     * Sends waiting calls while slots are free. Only one thread drains at a time, so a call
+     * failing right away does not recurse into the next one.
+     */
+    private void drain() {
+        synchronized (lock) {
+            if (draining) return;
+            draining = true;
+        }
+
+        while (true) {
+            PendingCall next = null;
+            synchronized (lock) {
+                if (inFlight < maxInFlight) {
+                    for (ArrayDeque<PendingCall> lane : lanes) {
+                        next = lane.pollFirst();
+                        if (next != null) break;
+                    }
+                }
+                if (next == null) {
+                    draining = false;
+                    return;
+                }
+                inFlight++;
+                waiting--;
+                lock.notifyAll();
+            }
+            next.send();
+        }
+    }
+
+    private abstract static class PendingCall {
+        final int priority;
+
+        long queuedAt;
+
+        PendingCall(int priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Copies the data of the call before it is queued.
+         */
+        abstract void retain();
+
+        abstract void send();
+
+        abstract void fail(int resultCode);
+    }
+}
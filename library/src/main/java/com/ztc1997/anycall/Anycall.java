@@ -18,27 +18,28 @@
 package com.ztc1997.anycall;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcel;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Base64;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
-import android.util.LruCache;
-
-import com.ztc1997.anycall.util.AssetUtil;
-import com.ztc1997.anycall.util.BuildCompat;
 
 import java.io.File;
 import java.io.FileDescriptor;
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-
-import eu.chainfire.libsuperuser.Shell;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @SuppressWarnings("TryWithIdenticalCatches")
 public class Anycall {
@@ -66,118 +67,950 @@ public class Anycall {
      */
     public static final int ERROR_FAILED_TO_GET_SERVICE = FIRST_ERROR_CODE + 2;
 
-    private LruCache<String, Integer> cache;
+    /**
+     * Failed to transact with the service, or the root session is not available. Also when the
+     * service died during the call, which may then be made again once the service is back,
+     * or does not know the transaction code.
+     */
+    public static final int ERROR_TRANSACTION_FAILED = FIRST_ERROR_CODE + 3;
+
+    /**
+     * Too many calls were waiting, see {@link #setAdmissionControl(int, int, int)}.
+     */
+    public static final int ERROR_QUEUE_FULL = FIRST_ERROR_CODE + 4;
+
+    /**
+     * The root session died or was stopped while the call was in flight. Calls of methods
+     * marked with {@link #setIdempotent(BinderMethod, boolean)} are sent again once the
+     * session is restarted instead, see {@link #setRestartPolicy(int, long, long, TimeUnit)}.
+     */
+    public static final int ERROR_SESSION_DIED = FIRST_ERROR_CODE + 5;
+
+    /**
+     * Runs the native binary once for each call.
+     */
+    public static final int MODE_EXEC = 0;
+
+    /**
+     * Starts a root helper once in {@link #startShell(StartShellListener)} and sends every call
+     * to it, avoiding a process spawn per call.
+     */
+    public static final int MODE_HELPER = 1;
+
+    /**
+     * Starts the root helper like {@link #MODE_HELPER}, but it hands a binder to this process
+     * and every call is a binder transaction forwarded by the root side, the fastest mode.
+     * Calls block the calling thread while they execute, make them off the main thread.
+     */
+    public static final int MODE_BINDER = 2;
+
+    /**
+     * {@link #startShell(StartShellListener)} has not been called, or {@link #stopShell()} was.
+     */
+    public static final int STATE_STOPPED = 0;
+
+    /**
+     * The root session is starting, or restarting after it died, calls are queued until it
+     * is ready.
+     */
+    public static final int STATE_STARTING = 1;
+
+    public static final int STATE_READY = 2;
+
+    /**
+     * The root session could not be started, or died and could not be restarted.
+     */
+    public static final int STATE_FAILED = 3;
+
+    /**
+     * The calling thread waits until a waiting call has been sent. Never use it on the thread
+     * replies are delivered on, the call would wait forever.
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /**
+     * The new call fails with {@link #ERROR_QUEUE_FULL}.
+     */
+    public static final int OVERFLOW_FAIL = 1;
+
+    /**
+     * The oldest waiting call of the lowest priority not above that of the new call fails
+     * with {@link #ERROR_QUEUE_FULL}, or the new call if there is none.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
+    /**
+     * Calls a user is waiting for, they are sent before all other waiting calls.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Background sweeps, sent only when no other calls are waiting.
+     */
+    public static final int PRIORITY_BULK = 2;
+
+    private TransactionCodes transactionCodes;
+
+    private PooledTransport pool;
+
+    private QueueingTransport queue;
+
+    private FailoverTransport failover;
+
+    private AdmissionTransport transport;
+
+    private final ResultCache resultCache = new ResultCache(ResultCache.DEFAULT_MAX_BYTES);
+
+    private final Metrics metrics = new Metrics();
+
+    private Handler metricsHandler;
+
+    private volatile Tracer tracer;
+
+    /**
+     * Set with {@link #setCallbackExecutor(Executor)}, overrides {@link #looperExecutor}.
+     */
+    private volatile Executor callbackExecutor;
 
-    private File binaryFile;
+    /**
+     * The looper of the thread that started the shell, null if it had none.
+     */
+    private volatile Executor looperExecutor;
 
-    private Shell.Interactive rootSession;
+    /**
+     * Runs tasks on the thread the reply arrives on.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
 
-    private int commandCount = 1;
+    private Runnable metricsReporter;
 
     public Anycall(@NonNull final Context ctx) {
         this(ctx, 1024);
     }
 
+    /**
+     * @param cacheSize The maximum number of transaction codes kept in memory
+     */
     public Anycall(@NonNull final Context ctx, final int cacheSize) {
-        binaryFile = new File(ctx.getFilesDir(), "anycall");
-        copyFileIfNotExist(ctx.getAssets());
+        this(ctx, cacheSize, MODE_HELPER);
+    }
 
-        cache = new LruCache<String, Integer>(cacheSize) {
+    /**
+     * @param mode {@link #MODE_HELPER}, {@link #MODE_BINDER} or {@link #MODE_EXEC}
+     */
+    public Anycall(@NonNull final Context ctx, final int cacheSize, final int mode) {
+        final Context appContext = ctx.getApplicationContext();
+        TransactionCodeStore store = new TransactionCodeStore(new File(ctx.getFilesDir(), "anycall-codes"),
+                String.valueOf(Build.FINGERPRINT), Build.VERSION.SDK_INT);
+        init(cacheSize, store, new Transport.Factory() {
             @Override
-            protected int sizeOf(String key, Integer value) {
-                return Integer.SIZE;
+            public Transport create() {
+                switch (mode) {
+                    case MODE_EXEC:
+                        return new ExecTransport(appContext, metrics);
+                    case MODE_BINDER:
+                        return new BinderTransport(appContext, metrics);
+                    default:
+                        return new HelperTransport(appContext.getPackageCodePath(), metrics);
+                }
             }
-        };
+        });
+    }
+
+    /**
+     * Runs calls over sessions of a transport of your own instead of a root shell, for
+     * instance a stand-in for the root side in tests and load tests. Admission control,
+     * queueing, restarts, the session pool and the result cache work as usual. Transaction
+     * codes are not persisted.
+     *
+     * @param sessions Creates one session per {@link #setSessionCount(int)}
+     */
+    public Anycall(final int cacheSize, @NonNull final Transport.Factory sessions) {
+        init(cacheSize, null, sessions);
+    }
+
+    private void init(int cacheSize, @Nullable TransactionCodeStore store, Transport.Factory sessions) {
+        pool = new PooledTransport(sessions, 1);
+        queue = new QueueingTransport(pool, metrics);
+        failover = new FailoverTransport(queue);
+        transport = new AdmissionTransport(failover, metrics);
+        transactionCodes = new TransactionCodes(cacheSize, store);
     }
 
     public boolean isRunning() {
-        return rootSession != null && rootSession.isRunning();
+        return transport.isRunning();
     }
 
-    public void startShell(@Nullable final StartShellListener listener) {
-        if (isRunning()) {
-            if (listener != null) listener.onFinish(true);
+    /**
+     * Sets the number of root sessions calls are spread over, so independent calls execute in
+     * parallel. Calls to the same service stay on one session unless it is much busier than
+     * the others. Defaults to 1.
+     *
+     * @throws IllegalStateException If the shell is running
+     */
+    public void setSessionCount(final int count) {
+        pool.resize(count);
+    }
+
+    /**
+     * @return The number of calls in flight on each root session
+     */
+    public int[] getInFlightCounts() {
+        return pool.getInFlight();
+    }
+
+    /**
+     * Queries the hit and miss counts of the service binder cache kept by the root helper,
+     * summed over all sessions.
+     *
+     * @return A future of the statistics, or null in {@link #MODE_EXEC} or if no session is
+     * running
+     */
+    public CallFuture<ServiceCacheStats> getServiceCacheStats() {
+        final CallFuture<ServiceCacheStats> future = new CallFuture<>();
+        transport.getServiceCacheStats(new Transport.StatsCallback() {
+            @Override
+            public void onStats(@Nullable ServiceCacheStats stats) {
+                future.set(stats);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Starts or stops recording how long each phase of a call takes, per method. Off by
+     * default, recording costs a few atomic increments per phase.
+     *
+     * @see MethodStats
+     */
+    public void setMetricsEnabled(final boolean enabled) {
+        metrics.setEnabled(enabled);
+    }
+
+    public MetricsSnapshot getMetricsSnapshot() {
+        return new MetricsSnapshot(metrics.snapshot(), queue.getQueueDepth(), pool.getInFlight(),
+                transport.getLaneDepths(), transport.getOverflowCount());
+    }
+
+    /**
+     * Drops the timings recorded so far.
+     */
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    /**
+     * Enables metrics and delivers a snapshot every {@code period} on the looper of the
+     * calling thread, or of the main thread.
+     *
+     * @param listener Null to stop the reports, metrics stay enabled
+     */
+    public void setMetricsListener(@Nullable final MetricsListener listener, final long period,
+                                   final TimeUnit unit) {
+        synchronized (metrics) {
+            if (metricsReporter != null) {
+                metricsHandler.removeCallbacks(metricsReporter);
+                metricsReporter = null;
+            }
+            if (listener == null) return;
+
+            Looper looper = Looper.myLooper();
+            metricsHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+            final long periodMillis = Math.max(1, unit.toMillis(period));
+            metricsReporter = new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMetrics(getMetricsSnapshot());
+                    metricsHandler.postDelayed(this, periodMillis);
+                }
+            };
+            metrics.setEnabled(true);
+            metricsHandler.postDelayed(metricsReporter, periodMillis);
         }
+    }
+
+    /**
+     * @return One of {@link #STATE_STOPPED}, {@link #STATE_STARTING}, {@link #STATE_READY} or
+     * {@link #STATE_FAILED}
+     */
+    public int getState() {
+        return queue.getState();
+    }
+
+    /**
+     * Starts the root session in the background and returns immediately. Calls made before it
+     * is ready are queued and sent once it is, or fail with {@link #ERROR_TRANSACTION_FAILED}
+     * if it cannot be started. If it dies later, it is restarted in the background, see
+     * {@link #setRestartPolicy(int, long, long, TimeUnit)}.
+     *
+     * @param listener Called once the session is ready or has failed, right away if it is
+     *                 already running. Like all listeners it runs on the callback executor.
+     */
+    public void startShell(@Nullable final StartShellListener listener) {
+        Looper looper = Looper.myLooper();
+        looperExecutor = looper == null ? null : new HandlerExecutor(looper);
 
-        rootSession = new Shell.Builder()
-                .useSU()
-                .open(new Shell.OnCommandResultListener() {
+        transport.start(listener == null ? null : new StartShellListener() {
+            @Override
+            public void onFinish(final boolean success) {
+                dispatch(null, new Runnable() {
                     @Override
-                    public void onCommandResult(int commandCode, int exitCode, List<String> output) {
-                        if (exitCode != 0) {
-                            if (listener != null)
-                                listener.onFinish(false);
-                        } else {
-                            rootSession.addCommand("chmod 755 " + binaryFile.getAbsolutePath(), 0, new Shell.OnCommandResultListener() {
-                                @Override
-                                public void onCommandResult(int commandCode, int exitCode, List<String> output) {
-                                    if (listener != null)
-                                        listener.onFinish(exitCode == 0);
-                                }
-                            });
-                        }
+                    public void run() {
+                        listener.onFinish(success);
                     }
                 });
+            }
+        });
+    }
+
+    /**
+     * Sets where listeners run. Replies are always decoded before, off the main thread in
+     * {@link #MODE_HELPER} and {@link #MODE_EXEC}, so a listener on the main thread only
+     * costs what it does itself. Listeners may also be given an executor of their own per call.
+     *
+     * @param executor Null for the default: the looper of the thread that called
+     *                 {@link #startShell(StartShellListener)}, or the thread the reply arrived
+     *                 on if it had no looper
+     */
+    public void setCallbackExecutor(@Nullable final Executor executor) {
+        callbackExecutor = executor;
     }
 
     public void stopShell() {
-        if (rootSession != null) {
-            rootSession.close();
-            rootSession = null;
+        transport.stop();
+    }
+
+    /**
+     * Bounds the calls sent to the root sessions. Up to {@code maxInFlight} calls are in
+     * flight at once, further calls wait in one lane per priority and are sent highest
+     * priority first, oldest first within a lane. Once {@code capacity} calls are waiting,
+     * {@code overflowPolicy} decides what happens to the next one. A batch counts as one call.
+     * Unbounded by default.
+     *
+     * @param overflowPolicy {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_FAIL} or
+     *                       {@link #OVERFLOW_DROP_OLDEST}
+     * @see MetricsSnapshot#laneDepths
+     */
+    public void setAdmissionControl(final int maxInFlight, final int capacity,
+                                    final int overflowPolicy) {
+        transport.configure(maxInFlight, capacity, overflowPolicy);
+    }
+
+    /**
+     * Sets the priority of the calls made on the calling thread from now on, see
+     * {@link #setAdmissionControl(int, int, int)}.
+     *
+     * @param priority {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_NORMAL} (the default) or
+     *                 {@link #PRIORITY_BULK}
+     */
+    public void setCallPriority(final int priority) {
+        transport.setPriority(priority);
+    }
+
+    public int getCallPriority() {
+        return transport.getPriority();
+    }
+
+    /**
+     * Sets how a root session that died is restarted. The first attempt is made right away,
+     * the next after {@code initialDelay}, doubling up to {@code maxDelay}. Calls in flight
+     * fail with {@link #ERROR_SESSION_DIED}, except those of idempotent methods, which are
+     * sent again once a restart succeeds. Defaults to 5 attempts, 100 ms and 5 s.
+     *
+     * @param maxAttempts 0 to never restart
+     */
+    public void setRestartPolicy(final int maxAttempts, final long initialDelay, final long maxDelay,
+                                 final TimeUnit unit) {
+        failover.configure(maxAttempts, unit.toMillis(initialDelay), unit.toMillis(maxDelay));
+    }
+
+    /**
+     * Marks a method as safe to call twice, e.g. one that only reads. Its calls in flight when
+     * the root session dies are sent again once it is restarted, instead of failing with
+     * {@link #ERROR_SESSION_DIED}. A batch is only sent again if all of its methods are.
+     *
+     * @return False if the transaction code cannot be obtained
+     */
+    public boolean setIdempotent(final String className, final String serviceName,
+                                 final String methodName, final boolean idempotent) {
+        BinderMethod method = resolveMethod(className, serviceName, methodName);
+        if (method == null) return false;
+        setIdempotent(method, idempotent);
+        return true;
+    }
+
+    /**
+     * @see #setIdempotent(String, String, String, boolean)
+     */
+    public void setIdempotent(final BinderMethod method, final boolean idempotent) {
+        failover.setIdempotent(method.serviceName, method.transactionCode, idempotent);
+    }
+
+    /**
+     * Records every call made through {@code callMethod}, {@code callMethodAsync},
+     * {@code callMethods} and {@code callMethodOneway} into a trace file, with its names,
+     * transaction code, data, result code and timing, until {@link #stopTrace()}. The calls of
+     * a batch are recorded one by one, each with the duration of the whole batch. The file is
+     * flushed every second. Replay it with {@link TraceReplayer}.
+     *
+     * @param withReplies Whether to record the replies too, which makes the trace larger
+     * @throws IOException If the file cannot be created
+     * @see com.ztc1997.anycall.protocol.TraceWriter
+     */
+    public void startTrace(@NonNull final File file, final boolean withReplies) throws IOException {
+        Tracer tracer = new Tracer(file, withReplies);
+        Tracer previous;
+        synchronized (this) {
+            previous = this.tracer;
+            this.tracer = tracer;
+        }
+        if (previous != null) previous.close();
+    }
+
+    /**
+     * Ends the trace, calls still in flight are not recorded.
+     */
+    public void stopTrace() {
+        Tracer previous;
+        synchronized (this) {
+            previous = tracer;
+            tracer = null;
         }
+        if (previous != null) previous.close();
+    }
+
+    /**
+     * Caches the replies of a read-only method for {@code ttl}, and lets identical calls in
+     * flight share one transaction. Calls are identical if their data parcels are equal byte
+     * for byte. Only successful replies are cached, up to 256 KB in total. Calls and replies
+     * carrying binders or file descriptors are never cached.
+     *
+     * @param ttl 0 to stop caching the method
+     * @return False if the transaction code cannot be obtained
+     */
+    public boolean setResultCacheTtl(final String className, final String serviceName,
+                                     final String methodName, final long ttl, final TimeUnit unit) {
+        BinderMethod method = resolveMethod(className, serviceName, methodName);
+        if (method == null) return false;
+        setResultCacheTtl(method, ttl, unit);
+        return true;
+    }
+
+    /**
+     * @see #setResultCacheTtl(String, String, String, long, TimeUnit)
+     */
+    public void setResultCacheTtl(final BinderMethod method, final long ttl, final TimeUnit unit) {
+        resultCache.setTtl(method.serviceName, method.transactionCode, unit.toNanos(ttl));
+    }
+
+    /**
+     * Drops all cached replies, for example after a call that changes what they returned.
+     * Replies of calls still in flight are delivered but not cached.
+     */
+    public void clearResultCache() {
+        resultCache.clear();
+    }
+
+    /**
+     * Resolves the transaction code of a method once, calls through the returned
+     * {@link BinderMethod} skip the lookup.
+     *
+     * @return Null if the transaction code cannot be obtained
+     */
+    @Nullable
+    public BinderMethod resolveMethod(final String className, final String serviceName,
+                                      final String methodName) {
+        long start = metrics.start();
+        int transactionCode = transactionCodes.get(className, methodName);
+        if (transactionCode == TransactionCodes.NOT_FOUND) return null;
+        metrics.recordResolve(className, serviceName, methodName, transactionCode, start);
+        return new BinderMethod(className, serviceName, methodName, transactionCode);
+    }
+
+    /**
+     * Resolves a method and checks its parameter types once, calls through the returned
+     * {@link CallSignature} write their arguments without boxing or per-argument type checks.
+     *
+     * @return Null if the transaction code cannot be obtained
+     * @throws IllegalArgumentException If a parameter type cannot be written to a parcel
+     */
+    @Nullable
+    public CallSignature compileSignature(final String className, final String serviceName,
+                                          final String methodName, final Class<?>... parameterTypes) {
+        BinderMethod method = resolveMethod(className, serviceName, methodName);
+        if (method == null) return null;
+        return new CallSignature(this, method, parameterTypes);
+    }
+
+    /**
+     * Implements a Java interface annotated with {@link BinderInterface} by calling the system
+     * interface it declares. Each method is called by its name with its parameters written as
+     * AIDL does, and its reply is read according to its return type, see
+     * {@link ParcelableType}. Methods returning a {@link CallFuture} are asynchronous, all
+     * others block the calling thread.
+     *
+     * @throws IllegalArgumentException If a method cannot be resolved or its parameter or
+     *                                  return types are not supported
+     */
+    public <T> T createProxy(@NonNull final Class<T> cls) {
+        return InterfaceProxy.create(this, cls);
+    }
+
+    /**
+     * Gives back a reply kept by returning false from a listener.
+     *
+     * @throws IllegalStateException In debug builds, if the reply was already given back
+     */
+    public static void recycleReply(@Nullable Parcel reply) {
+        if (reply != null) ReplyParcels.recycle(reply);
     }
 
     public void callMethod(final String className, final String serviceName,
                            final String methodName, final Parcel data,
                            final CallMethodResultListener listener) {
+        long start = metrics.start();
+        int transactionCode = transactionCodes.get(className, methodName);
+        if (transactionCode == TransactionCodes.NOT_FOUND) {
+            // Delivered through the callback executor like any other result
+            if (listener != null) dispatching(null, listener).onResult(ERROR_CANNOT_OBTAIN_TRANSACTION_CODE, null);
+            return;
+        }
+        metrics.recordResolve(className, serviceName, methodName, transactionCode, start);
+
+        callMethod(className, methodName, serviceName, transactionCode, data, null, null, listener);
+    }
+
+    public void callMethod(final BinderMethod method, final Parcel data,
+                           final CallMethodResultListener listener) {
+        callMethod(method.className, method.methodName, method.serviceName, method.transactionCode,
+                data, null, null, listener);
+    }
 
-        Integer transactionCode = obtainTransactionCode(className, methodName);
-        if (transactionCode == null) {
-            if (listener != null) listener.onResult(ERROR_CANNOT_OBTAIN_TRANSACTION_CODE, null);
+    /**
+     * @param executor Where the listener runs, null for the executor of this instance
+     * @see #setCallbackExecutor(Executor)
+     */
+    public void callMethod(final BinderMethod method, final Parcel data,
+                           @Nullable final Executor executor, final CallMethodResultListener listener) {
+        callMethod(method.className, method.methodName, method.serviceName, method.transactionCode,
+                data, executor, null, listener);
+    }
+
+    /**
+     * @param handle Cancels the transaction, cached calls ignore it as their reply is shared
+     */
+    private void callMethod(final String className, final String methodName,
+                            final String serviceName, final int transactionCode, final Parcel data,
+                            @Nullable Executor executor, @Nullable CallHandle handle,
+                            CallMethodResultListener resultListener) {
+        CallMethodResultListener dispatching = dispatching(executor,
+                metrics.wrap(serviceName, transactionCode, resultListener));
+        Tracer tracer = this.tracer;
+        final CallMethodResultListener listener = tracer == null ? dispatching
+                : tracer.wrap(className, methodName, serviceName, transactionCode, data, dispatching);
+        long ttl = resultCache.getTtl(serviceName, transactionCode);
+        if (ttl > 0) {
+            callCachedMethod(serviceName, transactionCode, data, ttl, listener);
             return;
         }
 
-        String dataBase64 = Base64.encodeToString(data.marshall(), Base64.NO_WRAP);
+        transactUncached(serviceName, transactionCode, data, handle, listener);
+    }
 
-        final int commandFlag = this.commandCount++;
-        callBinary(serviceName, transactionCode, dataBase64, commandFlag, new Shell.OnCommandResultListener() {
+    private void transactUncached(String serviceName, int transactionCode, Parcel data,
+                                  @Nullable CallHandle handle,
+                                  @Nullable final CallMethodResultListener listener) {
+        transport.transact(serviceName, transactionCode, data, CallHandle.attach(handle, new Transport.ReplyCallback() {
             @Override
-            public void onCommandResult(int commandCode, int exitCode, List<String> output) {
-                if (commandCode != commandFlag) return;
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                boolean shouldRecycle = listener == null || listener.onResult(resultCode, reply);
+                if (shouldRecycle && reply != null) ReplyParcels.recycle(reply);
+            }
+        }));
+    }
 
-                if (BuildConfig.DEBUG)
-                    Log.d(TAG, "commandCode = " + commandCode + ", exitCode = " + exitCode + ", output = " + output);
+    private void callCachedMethod(final String serviceName, final int transactionCode,
+                                  final Parcel data, final long ttl,
+                                  final CallMethodResultListener listener) {
+        byte[] marshalled = marshallForCache(data);
+        if (marshalled == null) {
+            transactUncached(serviceName, transactionCode, data, null, listener);
+            return;
+        }
 
-                if (listener != null) {
-                    if (exitCode == 0) {
-                        StringBuilder encoded = new StringBuilder();
-                        for (String s : output) {
-                            encoded.append(s);
-                        }
+        final ResultCache.Key key = new ResultCache.Key(serviceName, transactionCode, marshalled);
+        byte[] cached = resultCache.get(key, System.nanoTime());
+        if (cached != null) {
+            deliverCachedReply(listener, 0, cached);
+            return;
+        }
+        if (resultCache.join(key, listener)) return;
 
-                        String replyBase64 = encoded.toString();
-                        Log.d(TAG, replyBase64);
-                        byte[] replyRaw = Base64.decode(replyBase64, Base64.NO_WRAP);
-
-                        Parcel reply = Parcel.obtain();
-                        reply.unmarshall(replyRaw, 0, replyRaw.length);
-                        reply.setDataPosition(0);
-                        boolean shouldRecycle = listener.onResult(exitCode, reply);
-                        if (shouldRecycle) reply.recycle();
-                    } else {
-                        listener.onResult(exitCode, null);
+        transport.transact(serviceName, transactionCode, data, new Transport.ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                byte[] bytes = reply == null ? null : marshallForCache(reply);
+                List<CallMethodResultListener> waiting = resultCache.complete(key, resultCode == 0,
+                        bytes, System.nanoTime() + ttl);
+                if (reply == null || bytes != null) {
+                    if (reply != null) ReplyParcels.recycle(reply);
+                    for (CallMethodResultListener waiter : waiting) {
+                        deliverCachedReply(waiter, resultCode, bytes);
                     }
+                    return;
+                }
+
+                // Not cached, the first caller takes the reply and the others get copies of it
+                Parcel[] replies = new Parcel[waiting.size()];
+                replies[0] = reply;
+                for (int i = 1; i < replies.length; i++) {
+                    replies[i] = ReplyParcels.obtain();
+                    replies[i].appendFrom(reply, 0, reply.dataSize());
+                    replies[i].setDataPosition(0);
+                }
+                for (int i = 0; i < replies.length; i++) {
+                    CallMethodResultListener waiter = waiting.get(i);
+                    boolean shouldRecycle = waiter == null || waiter.onResult(resultCode, replies[i]);
+                    if (shouldRecycle) ReplyParcels.recycle(replies[i]);
                 }
             }
         });
     }
 
+    /**
+     * @return The marshalled parcel, null if it carries file descriptors or binders, which
+     * cannot be marshalled
+     */
+    @Nullable
+    private static byte[] marshallForCache(Parcel parcel) {
+        if (parcel.hasFileDescriptors()) return null;
+        try {
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            if (BuildConfig.DEBUG) Log.d(TAG, "Not caching a parcel: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a listener so it runs on the executor of the call. The wrapper keeps the reply,
+     * the listener decides once it has run.
+     */
+    @Nullable
+    private CallMethodResultListener dispatching(@Nullable final Executor executor,
+                                                 @Nullable final CallMethodResultListener listener) {
+        if (listener == null) return null;
+
+        return new CallMethodResultListener() {
+            @Override
+            public boolean onResult(final int resultCode, @Nullable final Parcel reply) {
+                dispatch(executor, new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean shouldRecycle = listener.onResult(resultCode, reply);
+                        if (shouldRecycle && reply != null) ReplyParcels.recycle(reply);
+                    }
+                });
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Runs the task on the given executor, the callback executor, the looper of the thread
+     * that started the shell or else right away, whichever is set first.
+     */
+    private void dispatch(@Nullable Executor executor, Runnable task) {
+        if (executor == null) executor = callbackExecutor;
+        if (executor == null) executor = looperExecutor;
+        if (executor == null) {
+            task.run();
+            return;
+        }
+
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Better late than never, the reply would leak otherwise
+            Log.w(TAG, e);
+            task.run();
+        }
+    }
+
+    /**
+     * Hands every listener a reply of its own.
+     */
+    private static void deliverCachedReply(@Nullable CallMethodResultListener listener,
+                                           int resultCode, @Nullable byte[] bytes) {
+        if (listener == null) return;
+
+        Parcel reply = null;
+        if (bytes != null) {
+            reply = ReplyParcels.obtain();
+            reply.unmarshall(bytes, 0, bytes.length);
+            reply.setDataPosition(0);
+        }
+        boolean shouldRecycle = listener.onResult(resultCode, reply);
+        if (shouldRecycle && reply != null) ReplyParcels.recycle(reply);
+    }
+
+    /**
+     * Sends a call without waiting for it, for methods that return nothing or whose result
+     * does not matter. The root side transacts with {@link IBinder#FLAG_ONEWAY}, so it does
+     * not wait for the service either. Oneway calls are executed in the order they were made,
+     * and the root helper receives those made in quick succession in one write. Failures are
+     * only logged. In {@link #MODE_EXEC} the native binary still waits for each service.
+     *
+     * @param data The data parcel, still owned by the caller
+     * @return False if the transaction code cannot be obtained
+     */
+    public boolean callMethodOneway(final String className, final String serviceName,
+                                    final String methodName, final Parcel data) {
+        BinderMethod method = resolveMethod(className, serviceName, methodName);
+        if (method == null) return false;
+        callMethodOneway(method, data);
+        return true;
+    }
+
+    /**
+     * @see #callMethodOneway(String, String, String, Parcel)
+     */
+    public void callMethodOneway(final BinderMethod method, final Parcel data) {
+        Tracer tracer = this.tracer;
+        if (tracer != null) tracer.recordOneway(method, data);
+        transport.transactOneway(method.serviceName, method.transactionCode, data);
+    }
+
+    /**
+     * Ships all calls to the root side as one unit, where they are executed back-to-back,
+     * and returns all replies together.
+     *
+     * @param calls The calls, their data parcels are still owned by the caller
+     */
+    public void callMethods(final List<MethodCall> calls, final BatchResultListener listener) {
+        callMethods(calls, null, listener);
+    }
+
+    /**
+     * @param executor Where the listener runs, null for the executor of this instance
+     * @see #callMethods(List, BatchResultListener)
+     */
+    public void callMethods(final List<MethodCall> calls, @Nullable final Executor executor,
+                            final BatchResultListener listener) {
+        final int size = calls.size();
+        final int[] resultCodes = new int[size];
+        final Parcel[] replies = new Parcel[size];
+
+        // Only the calls with a known transaction code are sent
+        final int[] indexes = new int[size];
+        String[] serviceNames = new String[size];
+        int[] codes = new int[size];
+        Parcel[] data = new Parcel[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            MethodCall call = calls.get(i);
+            int transactionCode = transactionCodes.get(call.className, call.methodName);
+            if (transactionCode == TransactionCodes.NOT_FOUND) {
+                resultCodes[i] = ERROR_CANNOT_OBTAIN_TRANSACTION_CODE;
+                continue;
+            }
+            indexes[count] = i;
+            serviceNames[count] = call.serviceName;
+            codes[count] = transactionCode;
+            data[count] = call.data;
+            count++;
+        }
+
+        if (count == 0) {
+            if (listener != null) dispatch(executor, new Runnable() {
+                @Override
+                public void run() {
+                    listener.onResult(resultCodes, replies);
+                }
+            });
+            return;
+        }
+
+        Transport.BatchReplyCallback callback = new Transport.BatchReplyCallback() {
+            @Override
+            public void onReply(int[] sentResultCodes, Parcel[] sentReplies) {
+                for (int i = 0; i < sentResultCodes.length; i++) {
+                    resultCodes[indexes[i]] = sentResultCodes[i];
+                    replies[indexes[i]] = sentReplies[i];
+                }
+
+                dispatch(executor, new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean shouldRecycle = listener == null || listener.onResult(resultCodes, replies);
+                        if (shouldRecycle) {
+                            for (Parcel reply : replies) {
+                                if (reply != null) ReplyParcels.recycle(reply);
+                            }
+                        }
+                    }
+                });
+            }
+        };
+        Tracer tracer = this.tracer;
+        if (tracer != null) callback = tracer.wrap(calls, indexes, codes, count, callback);
+        transport.transact(Arrays.copyOf(serviceNames, count), Arrays.copyOf(codes, count),
+                Arrays.copyOf(data, count), callback);
+    }
+
     public void callMethod(final String className, final String serviceName,
                            final String methodName, final Object... paramsAndListener) {
         Parcel data = Parcel.obtain();
         data.writeInterfaceToken(className);
-        for (int i = 0; i < paramsAndListener.length - 1; i++) {
-            Object p = paramsAndListener[i];
+        writeParams(data, paramsAndListener, paramsAndListener.length - 1);
+
+        Object lastParam = paramsAndListener[paramsAndListener.length - 1];
+        CallMethodResultListener listener = lastParam == null ? null :
+                (CallMethodResultListener) lastParam;
+
+        callMethod(className, serviceName, methodName, data, listener);
+        data.recycle();
+    }
+
+    /**
+     * The future is completed on the executor of this instance, but the reader runs right where
+     * the reply arrives: on the thread reading replies from the root side, or on the calling
+     * thread for cached replies. It must only read the reply, as it holds up other replies.
+     *
+     * @param reader Reads the value of the future from the reply, which is recycled afterwards.
+     *               May be null if the reply is not needed.
+     * @return A future failed with {@link AnycallException} if the result code is not 0
+     */
+    public <T> CallFuture<T> callMethodAsync(final String className, final String serviceName,
+                                             final String methodName, final Parcel data,
+                                             @Nullable final ReplyReader<T> reader) {
+        BinderMethod method = resolveMethod(className, serviceName, methodName);
+        if (method == null) {
+            final CallFuture<T> future = new CallFuture<>();
+            dispatch(null, new Runnable() {
+                @Override
+                public void run() {
+                    future.setException(new AnycallException(ERROR_CANNOT_OBTAIN_TRANSACTION_CODE));
+                }
+            });
+            return future;
+        }
+        return callMethodAsync(method, data, reader);
+    }
+
+    /**
+     * @see #callMethodAsync(String, String, String, Parcel, ReplyReader)
+     */
+    public <T> CallFuture<T> callMethodAsync(final BinderMethod method, final Parcel data,
+                                             @Nullable final ReplyReader<T> reader) {
+        return callMethodAsync(method, data, reader, null);
+    }
+
+    /**
+     * @param executor Where the future is completed, and so where its direct callbacks run,
+     *                 null for the executor of this instance. The reader does not run there.
+     * @see #callMethodAsync(String, String, String, Parcel, ReplyReader)
+     */
+    public <T> CallFuture<T> callMethodAsync(final BinderMethod method, final Parcel data,
+                                             @Nullable final ReplyReader<T> reader,
+                                             @Nullable final Executor executor) {
+        final CallFuture<T> future = new CallFuture<>();
+        // Cancelling the future, which the blocking calls do when they time out, frees the reply slot
+        final CallHandle handle = new CallHandle();
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) handle.cancel();
+            }
+        });
+        // Read where the reply arrives, so the executor neither runs the reader nor holds the reply
+        callMethod(method.className, method.methodName, method.serviceName, method.transactionCode,
+                data, DIRECT, handle, new CallMethodResultListener() {
+                    @Override
+                    public boolean onResult(int resultCode, @Nullable Parcel reply) {
+                        if (future.isDone()) return true;
+
+                        T value = null;
+                        Exception failure = null;
+                        if (resultCode != 0) {
+                            failure = new AnycallException(resultCode);
+                        } else try {
+                            value = reader == null ? null : reader.read(reply);
+                        } catch (Exception e) {
+                            failure = e;
+                        }
+
+                        final T finalValue = value;
+                        final Exception finalFailure = failure;
+                        dispatch(executor, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (finalFailure != null) {
+                                    future.setException(finalFailure);
+                                } else {
+                                    future.set(finalValue);
+                                }
+                            }
+                        });
+                        return true;
+                    }
+                });
+        return future;
+    }
+
+    public <T> CallFuture<T> callMethodAsync(final String className, final String serviceName,
+                                             final String methodName,
+                                             @Nullable final ReplyReader<T> reader,
+                                             final Object... params) {
+        Parcel data = Parcel.obtain();
+        data.writeInterfaceToken(className);
+        writeParams(data, params, params.length);
+
+        CallFuture<T> future = callMethodAsync(className, serviceName, methodName, data, reader);
+        data.recycle();
+        return future;
+    }
+
+    /**
+     * Calls the method and waits for its result, never call it on the main thread.
+     *
+     * @throws ExecutionException Wraps an {@link AnycallException} if the result code is not 0,
+     *                            or the exception thrown by the reader
+     * @throws TimeoutException   The call did not finish in time, its reply will be dropped
+     */
+    @WorkerThread
+    public <T> T callMethodBlocking(final String className, final String serviceName,
+                                    final String methodName, final Parcel data,
+                                    @Nullable final ReplyReader<T> reader,
+                                    final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        BinderMethod method = resolveMethod(className, serviceName, methodName);
+        if (method == null)
+            throw new ExecutionException(new AnycallException(ERROR_CANNOT_OBTAIN_TRANSACTION_CODE));
+
+        // Completed where the reply arrives, the callback executor may be busy
+        CallFuture<T> future = callMethodAsync(method, data, reader, DIRECT);
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    static void writeParams(final Parcel data, final Object[] params, final int count) {
+        for (int i = 0; i < count; i++) {
+            Object p = params[i];
             if (p instanceof Byte)
                 data.writeByte((Byte) p);
             else if (p instanceof Integer)
@@ -218,64 +1051,6 @@ public class Anycall {
                 data.writeArray((Object[]) p);
             else data.writeValue(p);
         }
-
-        Object lastParam = paramsAndListener[paramsAndListener.length - 1];
-        CallMethodResultListener listener = lastParam == null ? null :
-                (CallMethodResultListener) lastParam;
-
-        callMethod(className, serviceName, methodName, data, listener);
-        data.recycle();
-    }
-
-    private Integer obtainTransactionCode(final String className, final String methodName) {
-        final String stubName = className + "$Stub";
-        final String fieldName = "TRANSACTION_" + methodName;
-        final String key = stubName + "." + fieldName;
-
-        Integer value = cache.get(key);
-        if (value != null) return value;
-
-        try {
-            final Class<?> cls = Class.forName(stubName);
-            final Field declaredField = cls.getDeclaredField(fieldName);
-            declaredField.setAccessible(true);
-            value = declaredField.getInt(cls);
-
-            cache.put(key, value);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } catch (NoSuchFieldException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        }
-        return value;
-    }
-
-    private void callBinary(final String serviceName, final int code, final String dataBase64, int flag,
-                            Shell.OnCommandResultListener listener) {
-        callBinary(serviceName + " " + code + " " + dataBase64, flag, listener);
-    }
-
-    private void callBinary(final String params, final int flag,
-                            final Shell.OnCommandResultListener listener) {
-        String command = binaryFile.getAbsolutePath() + " " + params;
-        if (BuildConfig.DEBUG)
-            Log.d(TAG, "command = " + command);
-        rootSession.addCommand(command, flag, listener);
-    }
-
-    private boolean copyFileIfNotExist(final AssetManager am) {
-        String api;
-        if (Build.VERSION.SDK_INT >= 23)
-            api = "sdk23-25";
-        else if (Build.VERSION.SDK_INT >= 19)
-            api = "sdk19-22";
-        else
-            throw new IllegalStateException("Unsupported SDK version " + Build.VERSION.SDK_INT);
-        String assetsPath = "anycall/" + api + "/" + BuildCompat.chooseAbi() + "/anycall";
-
-        return AssetUtil.compareAndCopyAssets(am, assetsPath, binaryFile.getAbsolutePath());
     }
 
     public interface StartShellListener {
@@ -287,12 +1062,40 @@ public class Anycall {
         /**
          * @param resultCode Equals 0 when success, or indicates an error
          * @param reply      The parcel reply from the service, may contains exceptions and return values
-         * @return Auto recycle reply parcel if true.
+         * @return True to give the reply back, it must not be used afterwards. False to keep
+         * it, it must then be given back with {@link Anycall#recycleReply(Parcel)} once done;
+         * debug builds log replies that are never given back.
          * @see #ERROR_CANNOT_OBTAIN_TRANSACTION_CODE
          * @see #ERROR_MISSING_PARAMETERS
          * @see #ERROR_FAILED_TO_GET_SERVICE_MANAGER
          * @see #ERROR_FAILED_TO_GET_SERVICE
+         * @see #ERROR_TRANSACTION_FAILED
+         * @see #ERROR_QUEUE_FULL
+         * @see #ERROR_SESSION_DIED
          */
         boolean onResult(int resultCode, @Nullable Parcel reply);
     }
+
+    public interface BatchResultListener {
+
+        /**
+         * @param resultCodes One per call, in order, see {@link CallMethodResultListener}
+         * @param replies     One per call, in order, null where the result code is not 0
+         * @return True to give the replies back, false to keep them, see
+         * {@link CallMethodResultListener#onResult(int, Parcel)}
+         */
+        boolean onResult(int[] resultCodes, Parcel[] replies);
+    }
+
+    public interface MetricsListener {
+        void onMetrics(MetricsSnapshot snapshot);
+    }
+
+    public interface ReplyReader<T> {
+
+        /**
+         * @param reply The reply parcel positioned at 0, recycled after this method returns
+         */
+        T read(Parcel reply) throws Exception;
+    }
 }
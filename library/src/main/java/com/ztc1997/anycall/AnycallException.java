@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+/**
+ * Thrown when a call finishes with a result code other than 0.
+ */
+public class AnycallException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int resultCode;
+
+    public AnycallException(int resultCode) {
+        super("Call failed with result code " + resultCode);
+        this.resultCode = resultCode;
+    }
+
+    /**
+     * @see Anycall.CallMethodResultListener#onResult(int, android.os.Parcel)
+     */
+    public int getResultCode() {
+        return resultCode;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the system interface a Java interface stands for, see
+ * {@link Anycall#createProxy(Class)}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface BinderInterface {
+
+    /**
+     * The AIDL interface name, e.g. {@code android.os.IPowerManager}.
+     */
+    String descriptor();
+
+    /**
+     * The name the service is registered with, e.g. {@code Context.POWER_SERVICE}.
+     */
+    String service();
+
+    /**
+     * How long a blocking method waits for its reply.
+     */
+    long timeoutMillis() default 10000;
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+/**
+ * A method of a system service with its transaction code already resolved, obtained from
+ * {@link Anycall#resolveMethod(String, String, String)}. Keep it around to skip the lookup on
+ * every call.
+ */
+public final class BinderMethod {
+    public final String className;
+
+    public final String serviceName;
+
+    public final String methodName;
+
+    public final int transactionCode;
+
+    BinderMethod(String className, String serviceName, String methodName, int transactionCode) {
+        this.className = className;
+        this.serviceName = serviceName;
+        this.methodName = methodName;
+        this.transactionCode = transactionCode;
+    }
+
+    @Override
+    public String toString() {
+        return className + "." + methodName + "@" + serviceName + "(" + transactionCode + ")";
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.ztc1997.anycall.server.AnycallServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts {@link AnycallServer} under su in binder mode, where it hands a proxy binder to this
+ * process through a broadcast. Every call is then a plain transaction on that binder, which
+ * the root side forwards to the target service, so calls cost a binder round trip and no
+ * pipe copies.
+ * <p>
+ * Calls block the calling thread while the root side executes them, the callbacks are then
+ * called on that thread.
+ */
+@SuppressWarnings("TryWithIdenticalCatches")
+class BinderTransport implements Transport {
+    private static final String TAG = Anycall.TAG;
+
+    /**
+     * How long to wait for the binder once the root helper is up.
+     */
+    private static final long BINDER_TIMEOUT_SECONDS = 10;
+
+    private final Context context;
+
+    private final Metrics metrics;
+
+    private Process process;
+
+    private volatile IBinder binder;
+
+    private volatile boolean running;
+
+    private volatile DeathListener deathListener;
+
+    BinderTransport(Context context, Metrics metrics) {
+        this.context = context;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void start(@Nullable final Anycall.StartShellListener listener) {
+        new Thread("anycall-binder") {
+            @Override
+            public void run() {
+                startHelper(listener);
+            }
+        }.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        binder = null;
+        if (process != null) process.destroy();
+        process = null;
+    }
+
+    @Override
+    public void transact(String serviceName, int code, Parcel data, ReplyCallback callback) {
+        Parcel reply = ReplyParcels.obtain();
+        int resultCode = forward(serviceName, code, data, reply);
+        if (resultCode != 0) {
+            ReplyParcels.recycle(reply);
+            reply = null;
+        }
+        callback.onReply(resultCode, reply);
+    }
+
+    @Override
+    public void transact(String[] serviceNames, int[] codes, Parcel[] data,
+                         BatchReplyCallback callback) {
+        int[] resultCodes = new int[codes.length];
+        Parcel[] replies = new Parcel[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            Parcel reply = ReplyParcels.obtain();
+            resultCodes[i] = forward(serviceNames[i], codes[i], data[i], reply);
+            if (resultCodes[i] == 0) replies[i] = reply;
+            else ReplyParcels.recycle(reply);
+        }
+        callback.onReply(resultCodes, replies);
+    }
+
+    /**
+     * The kernel queues oneway transactions to the proxy binder in order, and the root side
+     * forwards each as oneway again, so the caller never waits for the service.
+     */
+    @Override
+    public void transactOneway(String serviceName, int code, Parcel data) {
+        IBinder binder = this.binder;
+        if (binder == null) {
+            Log.w(TAG, "Oneway call " + serviceName + " " + code + " dropped, not running");
+            return;
+        }
+
+        Parcel forward = Parcel.obtain();
+        try {
+            forward.writeString(serviceName);
+            forward.writeInt(code);
+            forward.appendFrom(data, 0, data.dataSize());
+            binder.transact(AnycallServer.TRANSACTION_FORWARD, forward, null, IBinder.FLAG_ONEWAY);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        } finally {
+            forward.recycle();
+        }
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        ServiceCacheStats stats = null;
+        IBinder binder = this.binder;
+        if (binder != null) {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                if (binder.transact(AnycallServer.TRANSACTION_STATS, data, reply, 0)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(reply.createByteArray());
+                    stats = new ServiceCacheStats(buffer.getLong(), buffer.getLong(), buffer.getInt());
+                }
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            } finally {
+                data.recycle();
+                reply.recycle();
+            }
+        }
+
+        callback.onStats(stats);
+    }
+
+    /**
+     * Sends one call through the proxy binder. The root side appends the result code to the
+     * reply, it is cut off again here so the reply holds only what the service wrote.
+     *
+     * @return 0 on success, or an error code
+     */
+    private int forward(String serviceName, int code, Parcel data, Parcel reply) {
+        IBinder binder = this.binder;
+        if (binder == null) return Anycall.ERROR_TRANSACTION_FAILED;
+
+        long start = metrics.start();
+        Parcel forward = Parcel.obtain();
+        try {
+            forward.writeString(serviceName);
+            forward.writeInt(code);
+            forward.appendFrom(data, 0, data.dataSize());
+            metrics.record(serviceName, code, MethodStats.PHASE_MARSHAL, start);
+
+            long sentAt = metrics.start();
+            if (!binder.transact(AnycallServer.TRANSACTION_FORWARD, forward, reply, 0))
+                return Anycall.ERROR_TRANSACTION_FAILED;
+            metrics.record(serviceName, code, MethodStats.PHASE_EXECUTE, sentAt);
+        } catch (DeadObjectException e) {
+            // Stops the transport before the death notification arrives
+            e.printStackTrace();
+            died(binder);
+            return Anycall.ERROR_SESSION_DIED;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return Anycall.ERROR_TRANSACTION_FAILED;
+        } finally {
+            forward.recycle();
+        }
+
+        int size = reply.dataSize();
+        if (size < 4) return Anycall.ERROR_TRANSACTION_FAILED;
+        reply.setDataPosition(size - 4);
+        int resultCode = reply.readInt();
+        reply.setDataSize(size - 4);
+        reply.setDataPosition(0);
+        return resultCode;
+    }
+
+    private void startHelper(@Nullable Anycall.StartShellListener listener) {
+        // Only the root helper started here knows the action, other senders cannot hand over a binder
+        String action = AnycallServer.class.getName() + ".BINDER." + Long.toHexString(new SecureRandom().nextLong());
+        final IBinder[] received = new IBinder[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Bundle extras = intent.getBundleExtra(AnycallServer.EXTRA_BINDER);
+                if (extras != null) received[0] = getBinder(extras);
+                latch.countDown();
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(action));
+
+        boolean success = false;
+        try {
+            Process p = Runtime.getRuntime().exec("su");
+            OutputStream os = p.getOutputStream();
+            os.write(("export CLASSPATH=" + context.getPackageCodePath() + "\n").getBytes());
+            os.write(("exec app_process /system/bin " + AnycallServer.class.getName() + " "
+                    + AnycallServer.ARG_BINDER + " " + android.os.Process.myUid() + " "
+                    + context.getPackageName() + " " + action + " 2>/dev/null\n").getBytes());
+            os.flush();
+
+            synchronized (this) {
+                process = p;
+            }
+
+            InputStream is = p.getInputStream();
+            if (HelperTransport.awaitReady(is) && latch.await(BINDER_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    && received[0] != null) {
+                final IBinder binder = received[0];
+                binder.linkToDeath(new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        died(binder);
+                    }
+                }, 0);
+                this.binder = binder;
+                running = true;
+                success = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (RemoteException e) {
+            // Died before it could be used
+            e.printStackTrace();
+        } finally {
+            context.unregisterReceiver(receiver);
+        }
+
+        if (!success) stop();
+        notifyStarted(listener, success);
+    }
+
+    /**
+     * Stops the transport if the binder is still the one in use, a restarted session has
+     * another.
+     */
+    private void died(IBinder which) {
+        synchronized (this) {
+            if (!running || binder != which) return;
+            stop();
+        }
+        DeathListener listener = deathListener;
+        if (listener != null) listener.onDied();
+    }
+
+    /**
+     * Bundle#putBinder only exists from API 18 on, older versions have the hidden putIBinder.
+     */
+    @Nullable
+    private static IBinder getBinder(Bundle extras) {
+        try {
+            return (IBinder) Bundle.class.getMethod(Build.VERSION.SDK_INT >= 18 ? "getBinder" : "getIBinder",
+                    String.class).invoke(extras, AnycallServer.EXTRA_BINDER);
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static void notifyStarted(@Nullable Anycall.StartShellListener listener, boolean success) {
+        if (listener != null) listener.onFinish(success);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a call.
+ * <p>
+ * Cancelling only detaches this future: the transaction may still be executed on the root
+ * side, but its reply is dropped. A transport that keeps the call pending, as the root helper
+ * does, forgets it right away unless the result is cached.
+ */
+public class CallFuture<V> implements Future<V> {
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private int state = PENDING;
+
+    private V value;
+
+    private Throwable failure;
+
+    private List<Runnable> listeners = new ArrayList<>();
+
+    CallFuture() {
+    }
+
+    boolean set(V value) {
+        synchronized (this) {
+            if (state != PENDING) return false;
+            this.value = value;
+            state = SUCCEEDED;
+        }
+        complete();
+        return true;
+    }
+
+    boolean setException(Throwable failure) {
+        synchronized (this) {
+            if (state != PENDING) return false;
+            this.failure = failure;
+            state = FAILED;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (state != PENDING) return false;
+            state = CANCELLED;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (state == PENDING) wait();
+        return report();
+    }
+
+    @Override
+    public synchronized V get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (state == PENDING) {
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return report();
+    }
+
+    /**
+     * Runs the callback once this future is done, immediately if it already is. A cancelled
+     * future reports a {@link CancellationException} as failure.
+     */
+    public void addCallback(@NonNull final Callback<? super V> callback, @NonNull final Executor executor) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        V result;
+                        try {
+                            result = get();
+                        } catch (ExecutionException e) {
+                            callback.onFailure(e.getCause());
+                            return;
+                        } catch (CancellationException e) {
+                            callback.onFailure(e);
+                            return;
+                        } catch (InterruptedException e) {
+                            // Never happens, the future is done
+                            callback.onFailure(e);
+                            return;
+                        }
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+        });
+    }
+
+    public void addCallback(@NonNull Callback<? super V> callback) {
+        addCallback(callback, DIRECT);
+    }
+
+    /**
+     * @return A future completed with the result of the function applied to the value of this
+     * one, or with the same failure. Cancelling it also cancels this future.
+     */
+    public <R> CallFuture<R> then(@NonNull final Function<? super V, ? extends R> function) {
+        final CallFuture<R> next = new CallFuture<R>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // First, cancelling this future calls back here through the callback below
+                if (!super.cancel(mayInterruptIfRunning)) return false;
+                CallFuture.this.cancel(mayInterruptIfRunning);
+                return true;
+            }
+        };
+        addCallback(new Callback<V>() {
+            @Override
+            public void onSuccess(V value) {
+                R result;
+                try {
+                    result = function.apply(value);
+                } catch (Exception e) {
+                    next.setException(e);
+                    return;
+                }
+                next.set(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (t instanceof CancellationException) next.cancel(false);
+                else next.setException(t);
+            }
+        });
+        return next;
+    }
+
+    private V report() throws ExecutionException {
+        if (state == CANCELLED) throw new CancellationException();
+        if (state == FAILED) throw new ExecutionException(failure);
+        return value;
+    }
+
+    void addListener(Runnable listener) {
+        synchronized (this) {
+            if (state == PENDING) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private void complete() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            notifyAll();
+            toRun = listeners;
+            listeners = null;
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    public interface Callback<V> {
+        void onSuccess(V value);
+
+        void onFailure(Throwable t);
+    }
+
+    public interface Function<V, R> {
+        R apply(V value) throws Exception;
+    }
+}
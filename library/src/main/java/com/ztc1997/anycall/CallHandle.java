@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+/**
+ * Lets the caller of a transaction give up on it, so the transport that sent it forgets the
+ * reply instead of keeping it pending. It travels down the transports attached to the reply
+ * callback, each transport that wraps the callback attaches it to its own.
+ */
+final class CallHandle {
+
+    private boolean cancelled;
+
+    private Runnable canceller;
+
+    /**
+     * @param canceller Forgets the sent request and fails its callback, run right away if the
+     *                  call is already cancelled
+     */
+    void setCanceller(@Nullable Runnable canceller) {
+        synchronized (this) {
+            if (!cancelled) {
+                this.canceller = canceller;
+                return;
+            }
+        }
+        if (canceller != null) canceller.run();
+    }
+
+    void cancel() {
+        Runnable toRun;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            toRun = canceller;
+            canceller = null;
+        }
+        if (toRun != null) toRun.run();
+    }
+
+    @Nullable
+    static CallHandle of(Transport.ReplyCallback callback) {
+        return callback instanceof Carrier ? ((Carrier) callback).handle : null;
+    }
+
+    static Transport.ReplyCallback attach(@Nullable CallHandle handle, Transport.ReplyCallback callback) {
+        return handle == null ? callback : new Carrier(handle, callback);
+    }
+
+    private static class Carrier implements Transport.ReplyCallback {
+        final CallHandle handle;
+
+        private final Transport.ReplyCallback callback;
+
+        Carrier(CallHandle handle, Transport.ReplyCallback callback) {
+            this.handle = handle;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onReply(int resultCode, @Nullable Parcel reply) {
+            callback.onReply(resultCode, reply);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.FileDescriptor;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The parameter types of a method, checked once by
+ * {@link Anycall#compileSignature(String, String, String, Class[])}, so a call writes its
+ * arguments straight into a reused parcel without boxing or type checks per argument:
+ * <pre>
+ * goToSleep.begin().putLong(SystemClock.uptimeMillis()).call(listener);
+ * </pre>
+ */
+public final class CallSignature {
+    private static final int KIND_BYTE = 0;
+    private static final int KIND_BOOLEAN = 1;
+    private static final int KIND_INT = 2;
+    private static final int KIND_LONG = 3;
+    private static final int KIND_FLOAT = 4;
+    private static final int KIND_DOUBLE = 5;
+    private static final int KIND_STRING = 6;
+    private static final int KIND_BINDER = 7;
+    private static final int KIND_PARCELABLE = 8;
+    private static final int KIND_BUNDLE = 9;
+    private static final int KIND_FILE_DESCRIPTOR = 10;
+    private static final int KIND_LIST = 11;
+    private static final int KIND_MAP = 12;
+    private static final int KIND_BOOLEAN_ARRAY = 13;
+    private static final int KIND_BYTE_ARRAY = 14;
+    private static final int KIND_CHAR_ARRAY = 15;
+    private static final int KIND_INT_ARRAY = 16;
+    private static final int KIND_LONG_ARRAY = 17;
+    private static final int KIND_DOUBLE_ARRAY = 18;
+    private static final int KIND_STRING_ARRAY = 19;
+    private static final int KIND_BINDER_ARRAY = 20;
+
+    /**
+     * Parcels grown beyond this by a large call are freed once it is sent.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+
+    private final Anycall anycall;
+
+    private final BinderMethod method;
+
+    private final int[] kinds;
+
+    private final ThreadLocal<Invocation> invocations = new ThreadLocal<Invocation>() {
+        @Override
+        protected Invocation initialValue() {
+            return new Invocation();
+        }
+    };
+
+    /**
+     * @throws IllegalArgumentException If a parameter type cannot be written to a parcel
+     */
+    CallSignature(Anycall anycall, BinderMethod method, Class<?>[] parameterTypes) {
+        this.anycall = anycall;
+        this.method = method;
+        kinds = new int[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            kinds[i] = kindOf(parameterTypes[i]);
+        }
+    }
+
+    public BinderMethod getMethod() {
+        return method;
+    }
+
+    public int getParameterCount() {
+        return kinds.length;
+    }
+
+    /**
+     * Starts a call on the parcel reused by the current thread, discarding any call begun
+     * before on this thread and not sent.
+     */
+    public Invocation begin() {
+        Invocation invocation = invocations.get();
+        invocation.reset();
+        return invocation;
+    }
+
+    /**
+     * Frees the parcel reused by the current thread, for threads that will not call this
+     * method again. A later {@link #begin()} obtains a new one.
+     */
+    public void release() {
+        Invocation invocation = invocations.get();
+        invocations.remove();
+        invocation.data.recycle();
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == byte.class) return KIND_BYTE;
+        if (type == boolean.class) return KIND_BOOLEAN;
+        if (type == int.class) return KIND_INT;
+        if (type == long.class) return KIND_LONG;
+        if (type == float.class) return KIND_FLOAT;
+        if (type == double.class) return KIND_DOUBLE;
+        if (type == String.class) return KIND_STRING;
+        if (type == boolean[].class) return KIND_BOOLEAN_ARRAY;
+        if (type == byte[].class) return KIND_BYTE_ARRAY;
+        if (type == char[].class) return KIND_CHAR_ARRAY;
+        if (type == int[].class) return KIND_INT_ARRAY;
+        if (type == long[].class) return KIND_LONG_ARRAY;
+        if (type == double[].class) return KIND_DOUBLE_ARRAY;
+        if (type == String[].class) return KIND_STRING_ARRAY;
+        if (type == IBinder[].class) return KIND_BINDER_ARRAY;
+        if (type == FileDescriptor.class) return KIND_FILE_DESCRIPTOR;
+        if (type == Bundle.class) return KIND_BUNDLE;
+        if (IBinder.class.isAssignableFrom(type)) return KIND_BINDER;
+        if (Parcelable.class.isAssignableFrom(type)) return KIND_PARCELABLE;
+        if (List.class.isAssignableFrom(type)) return KIND_LIST;
+        if (Map.class.isAssignableFrom(type)) return KIND_MAP;
+        throw new IllegalArgumentException("Unsupported parameter type " + type.getName());
+    }
+
+    /**
+     * The arguments of one call, put in declaration order. Only valid on the thread that began
+     * it and until it is sent. Sending clears the parcel, so it holds no binders or file
+     * descriptors between calls, but it stays with the thread until {@link #release()}.
+     */
+    public final class Invocation {
+        private Parcel data = Parcel.obtain();
+
+        private int index;
+
+        private Invocation() {
+        }
+
+        private void reset() {
+            data.setDataSize(0);
+            data.writeInterfaceToken(method.className);
+            index = 0;
+        }
+
+        private void next(int kind) {
+            if (index >= kinds.length)
+                throw new IllegalStateException("Too many arguments for " + method);
+            if (kinds[index] != kind)
+                throw new IllegalArgumentException("Wrong type for argument " + index + " of " + method);
+            index++;
+        }
+
+        public Invocation putByte(byte value) {
+            next(KIND_BYTE);
+            data.writeByte(value);
+            return this;
+        }
+
+        /**
+         * Written as an int, like AIDL does.
+         */
+        public Invocation putBoolean(boolean value) {
+            next(KIND_BOOLEAN);
+            data.writeInt(value ? 1 : 0);
+            return this;
+        }
+
+        public Invocation putInt(int value) {
+            next(KIND_INT);
+            data.writeInt(value);
+            return this;
+        }
+
+        public Invocation putLong(long value) {
+            next(KIND_LONG);
+            data.writeLong(value);
+            return this;
+        }
+
+        public Invocation putFloat(float value) {
+            next(KIND_FLOAT);
+            data.writeFloat(value);
+            return this;
+        }
+
+        public Invocation putDouble(double value) {
+            next(KIND_DOUBLE);
+            data.writeDouble(value);
+            return this;
+        }
+
+        public Invocation putString(@Nullable String value) {
+            next(KIND_STRING);
+            data.writeString(value);
+            return this;
+        }
+
+        public Invocation putBinder(@Nullable IBinder value) {
+            next(KIND_BINDER);
+            data.writeStrongBinder(value);
+            return this;
+        }
+
+        /**
+         * Written with the non-null marker AIDL puts in front of parcelables.
+         */
+        public Invocation putParcelable(@Nullable Parcelable value) {
+            next(KIND_PARCELABLE);
+            if (value == null) {
+                data.writeInt(0);
+            } else {
+                data.writeInt(1);
+                value.writeToParcel(data, 0);
+            }
+            return this;
+        }
+
+        public Invocation putBundle(@Nullable Bundle value) {
+            next(KIND_BUNDLE);
+            data.writeBundle(value);
+            return this;
+        }
+
+        public Invocation putFileDescriptor(@NonNull FileDescriptor value) {
+            next(KIND_FILE_DESCRIPTOR);
+            data.writeFileDescriptor(value);
+            return this;
+        }
+
+        public Invocation putList(@Nullable List<?> value) {
+            next(KIND_LIST);
+            data.writeList(value);
+            return this;
+        }
+
+        public Invocation putMap(@Nullable Map<?, ?> value) {
+            next(KIND_MAP);
+            data.writeMap(value);
+            return this;
+        }
+
+        public Invocation putBooleanArray(@Nullable boolean[] value) {
+            next(KIND_BOOLEAN_ARRAY);
+            data.writeBooleanArray(value);
+            return this;
+        }
+
+        public Invocation putByteArray(@Nullable byte[] value) {
+            next(KIND_BYTE_ARRAY);
+            data.writeByteArray(value);
+            return this;
+        }
+
+        public Invocation putCharArray(@Nullable char[] value) {
+            next(KIND_CHAR_ARRAY);
+            data.writeCharArray(value);
+            return this;
+        }
+
+        public Invocation putIntArray(@Nullable int[] value) {
+            next(KIND_INT_ARRAY);
+            data.writeIntArray(value);
+            return this;
+        }
+
+        public Invocation putLongArray(@Nullable long[] value) {
+            next(KIND_LONG_ARRAY);
+            data.writeLongArray(value);
+            return this;
+        }
+
+        public Invocation putDoubleArray(@Nullable double[] value) {
+            next(KIND_DOUBLE_ARRAY);
+            data.writeDoubleArray(value);
+            return this;
+        }
+
+        public Invocation putStringArray(@Nullable String[] value) {
+            next(KIND_STRING_ARRAY);
+            data.writeStringArray(value);
+            return this;
+        }
+
+        public Invocation putBinderArray(@Nullable IBinder[] value) {
+            next(KIND_BINDER_ARRAY);
+            data.writeBinderArray(value);
+            return this;
+        }
+
+        /**
+         * Puts a boxed argument, for callers that only have objects at hand.
+         */
+        @SuppressWarnings("unchecked")
+        Invocation put(Object value) {
+            if (index >= kinds.length)
+                throw new IllegalStateException("Too many arguments for " + method);
+            switch (kinds[index]) {
+                case KIND_BYTE:
+                    return putByte((Byte) value);
+                case KIND_BOOLEAN:
+                    return putBoolean((Boolean) value);
+                case KIND_INT:
+                    return putInt((Integer) value);
+                case KIND_LONG:
+                    return putLong((Long) value);
+                case KIND_FLOAT:
+                    return putFloat((Float) value);
+                case KIND_DOUBLE:
+                    return putDouble((Double) value);
+                case KIND_STRING:
+                    return putString((String) value);
+                case KIND_BINDER:
+                    return putBinder((IBinder) value);
+                case KIND_PARCELABLE:
+                    return putParcelable((Parcelable) value);
+                case KIND_BUNDLE:
+                    return putBundle((Bundle) value);
+                case KIND_FILE_DESCRIPTOR:
+                    return putFileDescriptor((FileDescriptor) value);
+                case KIND_LIST:
+                    return putList((List<?>) value);
+                case KIND_MAP:
+                    return putMap((Map<?, ?>) value);
+                case KIND_BOOLEAN_ARRAY:
+                    return putBooleanArray((boolean[]) value);
+                case KIND_BYTE_ARRAY:
+                    return putByteArray((byte[]) value);
+                case KIND_CHAR_ARRAY:
+                    return putCharArray((char[]) value);
+                case KIND_INT_ARRAY:
+                    return putIntArray((int[]) value);
+                case KIND_LONG_ARRAY:
+                    return putLongArray((long[]) value);
+                case KIND_DOUBLE_ARRAY:
+                    return putDoubleArray((double[]) value);
+                case KIND_STRING_ARRAY:
+                    return putStringArray((String[]) value);
+                case KIND_BINDER_ARRAY:
+                    return putBinderArray((IBinder[]) value);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        /**
+         * @throws IllegalStateException If not all arguments were put
+         */
+        public void call(@Nullable Anycall.CallMethodResultListener listener) {
+            checkComplete();
+            try {
+                anycall.callMethod(method, data, listener);
+            } finally {
+                clear();
+            }
+        }
+
+        /**
+         * @throws IllegalStateException If not all arguments were put
+         * @see Anycall#callMethodAsync(BinderMethod, Parcel, Anycall.ReplyReader)
+         */
+        public <T> CallFuture<T> callAsync(@Nullable Anycall.ReplyReader<T> reader) {
+            return callAsync(reader, null);
+        }
+
+        /**
+         * @param executor Where the future is completed, null for the executor of the instance
+         */
+        <T> CallFuture<T> callAsync(@Nullable Anycall.ReplyReader<T> reader, @Nullable Executor executor) {
+            checkComplete();
+            try {
+                return anycall.callMethodAsync(method, data, reader, executor);
+            } finally {
+                clear();
+            }
+        }
+
+        private void checkComplete() {
+            if (index != kinds.length)
+                throw new IllegalStateException("Missing arguments for " + method);
+        }
+
+        /**
+         * Drops the references to the arguments once the transport has consumed the parcel.
+         */
+        private void clear() {
+            index = 0;
+            if (data.dataCapacity() > MAX_RETAINED_CAPACITY) {
+                data.recycle();
+                data = Parcel.obtain();
+            } else {
+                data.setDataSize(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.os.Build;
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Log;
+
+import com.ztc1997.anycall.util.AssetUtil;
+import com.ztc1997.anycall.util.BuildCompat;
+
+import java.io.File;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * Runs the native binary once per transaction in a root shell. libsuperuser executes the
+ * commands one after another.
+ * <p>
+ * The binary is only extracted from the assets when the shell is started, off the calling
+ * thread and while su is being acquired.
+ * <p>
+ * libsuperuser only reports the death of the shell to the commands it fails, so a started
+ * shell is probed for it meanwhile.
+ */
+class ExecTransport implements Transport {
+    private static final String TAG = Anycall.TAG;
+
+    /**
+     * The kernel limit for a single command line argument, MAX_ARG_STRLEN.
+     */
+    private static final int MAX_ARGUMENT_LENGTH = 32 * 4096 - 1;
+
+    private static final long PROBE_INTERVAL_MS = 2000;
+
+    /**
+     * Shared by all instances, a probe only checks whether the shell process has exited.
+     */
+    private static final Timer PROBES = new Timer("anycall-probe", true);
+
+    private final Context context;
+
+    private final Metrics metrics;
+
+    private final File binaryFile;
+
+    private final String binaryPath;
+
+    private volatile Shell.Interactive rootSession;
+
+    private volatile DeathListener deathListener;
+
+    private final AtomicInteger commandCount = new AtomicInteger(1);
+
+    private TimerTask probe;
+
+    ExecTransport(Context ctx, Metrics metrics) {
+        context = ctx.getApplicationContext();
+        this.metrics = metrics;
+        binaryFile = new File(ctx.getFilesDir(), "anycall");
+        binaryPath = binaryFile.getAbsolutePath();
+    }
+
+    @Override
+    public boolean isRunning() {
+        Shell.Interactive session = rootSession;
+        return session != null && session.isRunning();
+    }
+
+    @Override
+    public void start(@Nullable final Anycall.StartShellListener listener) {
+        // Extracting the binary and acquiring su run side by side, chmod needs both. The
+        // session is only known once open() returns, which may be after su was acquired.
+        final AtomicInteger remaining = new AtomicInteger(3);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicReference<Shell.Interactive> opened = new AtomicReference<>();
+        final Runnable stepDone = new Runnable() {
+            @Override
+            public void run() {
+                if (remaining.decrementAndGet() > 0) return;
+
+                final Shell.Interactive session = opened.get();
+                if (session != rootSession) {
+                    // Stopped meanwhile
+                    session.kill();
+                    if (listener != null) listener.onFinish(false);
+                    return;
+                }
+                if (failed.get() || !session.isRunning()) {
+                    stop();
+                    if (listener != null) listener.onFinish(false);
+                    return;
+                }
+                session.addCommand("chmod 755 " + binaryPath, 0, new Shell.OnCommandResultListener() {
+                    @Override
+                    public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                        // Not earlier, a shell that fails to start is no death to report
+                        if (exitCode == 0) watch(session);
+                        if (listener != null)
+                            listener.onFinish(exitCode == 0);
+                    }
+                });
+            }
+        };
+
+        new Thread("anycall-extract") {
+            @Override
+            public void run() {
+                if (!extractBinary()) failed.set(true);
+                stepDone.run();
+            }
+        }.start();
+
+        // Results arrive on the thread reading the shell output, so replies are decoded there
+        // rather than on the looper of the thread opening the shell
+        Shell.Interactive session = new Shell.Builder()
+                .useSU()
+                .setAutoHandler(false)
+                .open(new Shell.OnCommandResultListener() {
+                    @Override
+                    public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                        if (exitCode != 0) failed.set(true);
+                        stepDone.run();
+                    }
+                });
+        rootSession = session;
+        opened.set(session);
+        stepDone.run();
+    }
+
+    @Override
+    public synchronized void stop() {
+        cancelProbe();
+        if (rootSession != null) {
+            rootSession.close();
+            rootSession = null;
+        }
+    }
+
+    @Override
+    public void transact(final String serviceName, final int code, final Parcel data,
+                         final ReplyCallback callback) {
+        long start = metrics.start();
+        byte[] raw = data.marshall();
+        metrics.record(serviceName, code, MethodStats.PHASE_MARSHAL, start);
+
+        start = metrics.start();
+        String dataBase64 = Base64.encodeToString(raw, Base64.NO_WRAP);
+        metrics.record(serviceName, code, MethodStats.PHASE_ENCODE, start);
+        if (dataBase64.length() > MAX_ARGUMENT_LENGTH) {
+            // The binary would never start, only the helper can carry such calls
+            Log.w(TAG, "Data of " + dataBase64.length() + " bytes too large for exec mode");
+            callback.onReply(Anycall.ERROR_TRANSACTION_FAILED, null);
+            return;
+        }
+
+        final Shell.Interactive session = rootSession;
+        if (session == null || !session.isRunning()) {
+            callback.onReply(Anycall.ERROR_TRANSACTION_FAILED, null);
+            return;
+        }
+
+        final int commandFlag = commandCount.getAndIncrement();
+        final long sentAt = metrics.start();
+        callBinary(session, serviceName, code, dataBase64, commandFlag, new Shell.OnCommandResultListener() {
+            @Override
+            public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                if (commandCode != commandFlag) return;
+                if (exitCode == Shell.OnCommandResultListener.SHELL_DIED) {
+                    died(session);
+                    callback.onReply(Anycall.ERROR_SESSION_DIED, null);
+                    return;
+                }
+                metrics.record(serviceName, code, MethodStats.PHASE_EXECUTE, sentAt);
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "commandCode = " + commandCode + ", exitCode = " + exitCode + ", output = " + output);
+
+                if (exitCode == 0) {
+                    long start = metrics.start();
+                    Parcel reply = toReply(output);
+                    metrics.record(serviceName, code, MethodStats.PHASE_DECODE, start);
+                    callback.onReply(exitCode, reply);
+                } else {
+                    callback.onReply(exitCode, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the calls one after another, there is no way to ship them together to the binary.
+     */
+    @Override
+    public void transact(String[] serviceNames, int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        final int size = codes.length;
+        final int[] resultCodes = new int[size];
+        final Parcel[] replies = new Parcel[size];
+        final AtomicInteger remaining = new AtomicInteger(size);
+        if (size == 0) {
+            callback.onReply(resultCodes, replies);
+            return;
+        }
+
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            transact(serviceNames[i], codes[i], data[i], new ReplyCallback() {
+                @Override
+                public void onReply(int resultCode, @Nullable Parcel reply) {
+                    resultCodes[index] = resultCode;
+                    replies[index] = reply;
+                    if (remaining.decrementAndGet() == 0)
+                        callback.onReply(resultCodes, replies);
+                }
+            });
+        }
+    }
+
+    /**
+     * The binary always waits for the reply, so the call is made as usual and its reply
+     * dropped. The shell still runs it in order without blocking the caller.
+     */
+    @Override
+    public void transactOneway(final String serviceName, final int code, Parcel data) {
+        transact(serviceName, code, data, new ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                if (reply != null) ReplyParcels.recycle(reply);
+                else Log.w(TAG, "Oneway call " + serviceName + " " + code + " failed: " + resultCode);
+            }
+        });
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    /**
+     * libsuperuser fails every queued command once the shell dies, only the first one reports
+     * the death.
+     */
+    private void died(Shell.Interactive session) {
+        synchronized (this) {
+            if (rootSession != session) return;
+            rootSession = null;
+            cancelProbe();
+        }
+        DeathListener listener = deathListener;
+        if (listener != null) listener.onDied();
+    }
+
+    /**
+     * Reports the death of an idle shell before the next call runs into it.
+     */
+    private synchronized void watch(final Shell.Interactive session) {
+        if (rootSession != session) return;
+
+        cancelProbe();
+        probe = new TimerTask() {
+            @Override
+            public void run() {
+                if (session.isRunning()) return;
+                try {
+                    died(session);
+                } catch (RuntimeException e) {
+                    // The timer thread must survive a failing listener, the other shells need it
+                    Log.w(TAG, e);
+                }
+            }
+        };
+        PROBES.schedule(probe, PROBE_INTERVAL_MS, PROBE_INTERVAL_MS);
+    }
+
+    private synchronized void cancelProbe() {
+        if (probe != null) {
+            probe.cancel();
+            probe = null;
+        }
+    }
+
+    /**
+     * The binary looks the service up on every call, there is no cache.
+     */
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        callback.onStats(null);
+    }
+
+    private boolean extractBinary() {
+        String api;
+        if (Build.VERSION.SDK_INT >= 23)
+            api = "sdk23-25";
+        else if (Build.VERSION.SDK_INT >= 19)
+            api = "sdk19-22";
+        else {
+            Log.e(TAG, "Unsupported SDK version " + Build.VERSION.SDK_INT);
+            return false;
+        }
+        String abi;
+        try {
+            abi = BuildCompat.chooseAbi();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, e.getMessage());
+            return false;
+        }
+        String assetsPath = "anycall/" + api + "/" + abi + "/anycall";
+
+        // The assets can only change with an update of the apk
+        String version;
+        try {
+            version = String.valueOf(context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+            version = context.getPackageCodePath();
+        }
+
+        AssetManager am = context.getAssets();
+        return AssetUtil.extractAsset(am, assetsPath, binaryFile, version);
+    }
+
+    /**
+     * Rebuilds the reply from the output of the binary, which prints it as a single unwrapped
+     * line of Base64.
+     */
+    static Parcel toReply(List<String> output) {
+        String replyBase64;
+        if (output.size() == 1) {
+            replyBase64 = output.get(0);
+        } else {
+            StringBuilder encoded = new StringBuilder();
+            for (String s : output) {
+                encoded.append(s);
+            }
+            replyBase64 = encoded.toString();
+        }
+        byte[] replyRaw = Base64.decode(replyBase64, Base64.NO_WRAP);
+
+        Parcel reply = ReplyParcels.obtain();
+        reply.unmarshall(replyRaw, 0, replyRaw.length);
+        reply.setDataPosition(0);
+        return reply;
+    }
+
+    private void callBinary(Shell.Interactive session, final String serviceName, final int code,
+                            final String dataBase64, int flag, Shell.OnCommandResultListener listener) {
+        // Sized up front, the base64 data dominates the command
+        String command = new StringBuilder(binaryPath.length() + serviceName.length() + dataBase64.length() + 16)
+                .append(binaryPath).append(' ').append(serviceName).append(' ').append(code)
+                .append(' ').append(dataBase64).toString();
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "command = " + command);
+        session.addCommand(command, flag, listener);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Restarts the root sessions in the background as soon as one dies, trying again with
+ * exponential backoff, and sends the calls of idempotent methods that were in flight again
+ * once they are back. Other calls in flight fail right away with
+ * {@link Anycall#ERROR_SESSION_DIED}, and new calls wait in {@link QueueingTransport} while
+ * no session is running.
+ */
+class FailoverTransport implements Transport {
+    private static final String TAG = Anycall.TAG;
+
+    /**
+     * How often a call is sent again, in case the call itself kills the session.
+     */
+    private static final int MAX_RETRIES = 2;
+
+    private final QueueingTransport transport;
+
+    private final Object lock = new Object();
+
+    private final Map<String, Set<Integer>> idempotent = new HashMap<>();
+
+    private int maxAttempts = 5;
+
+    private long initialDelayMillis = 100;
+
+    private long maxDelayMillis = 5000;
+
+    /**
+     * Whether the sessions should be running, from {@link #start} until {@link #stop()}.
+     */
+    private boolean active;
+
+    private boolean restarting;
+
+    /**
+     * Whether a session died while restarting, which may have missed it.
+     */
+    private boolean diedAgain;
+
+    /**
+     * Idempotent calls waiting for the restart.
+     */
+    private List<RetryCall> parked = new ArrayList<>();
+
+    private volatile DeathListener deathListener;
+
+    FailoverTransport(QueueingTransport transport) {
+        this.transport = transport;
+        transport.setDeathListener(new DeathListener() {
+            @Override
+            public void onDied() {
+                Log.w(TAG, "Root session died");
+                restart(true);
+                DeathListener listener = deathListener;
+                if (listener != null) listener.onDied();
+            }
+        });
+    }
+
+    /**
+     * @see Anycall#setRestartPolicy(int, long, long, java.util.concurrent.TimeUnit)
+     */
+    void configure(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 0) throw new IllegalArgumentException("maxAttempts < 0");
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis)
+            throw new IllegalArgumentException("Invalid delays " + initialDelayMillis + ", " + maxDelayMillis);
+
+        synchronized (lock) {
+            this.maxAttempts = maxAttempts;
+            this.initialDelayMillis = initialDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+    }
+
+    /**
+     * @see Anycall#setIdempotent(BinderMethod, boolean)
+     */
+    void setIdempotent(String serviceName, int code, boolean value) {
+        synchronized (idempotent) {
+            Set<Integer> codes = idempotent.get(serviceName);
+            if (value) {
+                if (codes == null) {
+                    codes = new HashSet<>();
+                    idempotent.put(serviceName, codes);
+                }
+                codes.add(code);
+            } else if (codes != null) {
+                codes.remove(code);
+                if (codes.isEmpty()) idempotent.remove(serviceName);
+            }
+        }
+    }
+
+    private boolean isIdempotent(String serviceName, int code) {
+        synchronized (idempotent) {
+            Set<Integer> codes = idempotent.get(serviceName);
+            return codes != null && codes.contains(code);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return transport.isRunning();
+    }
+
+    @Override
+    public void start(@Nullable Anycall.StartShellListener listener) {
+        synchronized (lock) {
+            active = true;
+        }
+        transport.start(listener);
+    }
+
+    @Override
+    public void stop() {
+        List<RetryCall> failed;
+        synchronized (lock) {
+            active = false;
+            failed = parked;
+            parked = new ArrayList<>();
+        }
+        transport.stop();
+        for (RetryCall call : failed) {
+            call.fail();
+        }
+    }
+
+    @Override
+    public void transact(final String serviceName, final int code, Parcel data,
+                         final ReplyCallback callback) {
+        if (!isIdempotent(serviceName, code)) {
+            transport.transact(serviceName, code, data, callback);
+            return;
+        }
+
+        // Kept until the reply for sending it again
+        final Parcel copy = Parcels.copy(data);
+        new RetryCall() {
+            @Override
+            void send() {
+                transport.transact(serviceName, code, copy,
+                        CallHandle.attach(CallHandle.of(callback), new ReplyCallback() {
+                            @Override
+                            public void onReply(int resultCode, @Nullable Parcel reply) {
+                                if (resultCode == Anycall.ERROR_SESSION_DIED && retry()) return;
+                                copy.recycle();
+                                callback.onReply(resultCode, reply);
+                            }
+                        }));
+            }
+
+            @Override
+            void fail() {
+                copy.recycle();
+                callback.onReply(Anycall.ERROR_SESSION_DIED, null);
+            }
+        }.send();
+    }
+
+    /**
+     * A batch is sent again as a whole, and only if all of its calls are idempotent.
+     */
+    @Override
+    public void transact(final String[] serviceNames, final int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        for (int i = 0; i < codes.length; i++) {
+            if (!isIdempotent(serviceNames[i], codes[i])) {
+                transport.transact(serviceNames, codes, data, callback);
+                return;
+            }
+        }
+
+        final Parcel[] copies = new Parcel[data.length];
+        for (int i = 0; i < data.length; i++) {
+            copies[i] = Parcels.copy(data[i]);
+        }
+        new RetryCall() {
+            @Override
+            void send() {
+                transport.transact(serviceNames, codes, copies, new BatchReplyCallback() {
+                    @Override
+                    public void onReply(int[] resultCodes, Parcel[] replies) {
+                        if (sessionDied(resultCodes) && retry()) {
+                            for (Parcel reply : replies) {
+                                if (reply != null) ReplyParcels.recycle(reply);
+                            }
+                            return;
+                        }
+                        recycle();
+                        callback.onReply(resultCodes, replies);
+                    }
+                });
+            }
+
+            @Override
+            void fail() {
+                recycle();
+                int[] resultCodes = new int[codes.length];
+                for (int i = 0; i < resultCodes.length; i++) {
+                    resultCodes[i] = Anycall.ERROR_SESSION_DIED;
+                }
+                callback.onReply(resultCodes, new Parcel[codes.length]);
+            }
+
+            private void recycle() {
+                for (Parcel copy : copies) {
+                    copy.recycle();
+                }
+            }
+        }.send();
+    }
+
+    /**
+     * Oneway calls are never sent again, nothing tells whether they were executed.
+     */
+    @Override
+    public void transactOneway(String serviceName, int code, Parcel data) {
+        transport.transactOneway(serviceName, code, data);
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        transport.getServiceCacheStats(callback);
+    }
+
+    /**
+     * Starts restarting unless already restarting.
+     *
+     * @param reported Whether a session reported its death, rather than a call failing
+     */
+    private void restart(boolean reported) {
+        synchronized (lock) {
+            if (!active || maxAttempts == 0) return;
+            if (restarting) {
+                if (reported) diedAgain = true;
+                return;
+            }
+            restarting = true;
+        }
+
+        new Thread("anycall-restart") {
+            @Override
+            public void run() {
+                restartLoop();
+            }
+        }.start();
+    }
+
+    private void restartLoop() {
+        int maxAttempts;
+        long delay;
+        long maxDelay;
+        synchronized (lock) {
+            maxAttempts = this.maxAttempts;
+            delay = initialDelayMillis;
+            maxDelay = maxDelayMillis;
+        }
+
+        boolean success = false;
+        List<RetryCall> calls;
+        try {
+            for (int attempt = 1; attempt <= maxAttempts && !success; attempt++) {
+                synchronized (lock) {
+                    if (!active) break;
+                }
+                // The first attempt right away, a crash of the root helper is usually a one-off
+                if (attempt > 1) {
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, maxDelay);
+                }
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "restart attempt = " + attempt);
+                success = restartOnce();
+
+                synchronized (lock) {
+                    // Start over for the session that died meanwhile
+                    if (success && diedAgain) {
+                        diedAgain = false;
+                        success = false;
+                        attempt = 0;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        boolean active;
+        synchronized (lock) {
+            restarting = false;
+            diedAgain = false;
+            active = this.active;
+            calls = parked;
+            parked = new ArrayList<>();
+        }
+
+        if (!success && active) Log.w(TAG, "Gave up restarting the root session");
+        for (RetryCall call : calls) {
+            if (success) call.send();
+            else call.fail();
+        }
+    }
+
+    /**
+     * @return Whether the sessions are running again
+     */
+    private boolean restartOnce() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean();
+        boolean restarting = transport.restart(new Anycall.StartShellListener() {
+            @Override
+            public void onFinish(boolean success) {
+                result.set(success);
+                latch.countDown();
+            }
+        });
+        if (!restarting) return false;
+
+        latch.await();
+        return result.get();
+    }
+
+    private static boolean sessionDied(int[] resultCodes) {
+        for (int resultCode : resultCodes) {
+            if (resultCode == Anycall.ERROR_SESSION_DIED) return true;
+        }
+        return false;
+    }
+
+    private abstract class RetryCall {
+        private int retries;
+
+        abstract void send();
+
+        /**
+         * Fails the call with {@link Anycall#ERROR_SESSION_DIED}.
+         */
+        abstract void fail();
+
+        /**
+         * Parks the call until the sessions are restarted.
+         *
+         * @return False if the failure must be reported instead
+         */
+        boolean retry() {
+            synchronized (lock) {
+                if (!active || maxAttempts == 0 || retries == MAX_RETRIES) return false;
+                retries++;
+                parked.add(this);
+            }
+            // The death may not have been reported yet
+            restart(false);
+            return true;
+        }
+    }
+}
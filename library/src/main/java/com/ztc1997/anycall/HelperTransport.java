@@ -0,0 +1,549 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.ztc1997.anycall.protocol.Batch;
+import com.ztc1997.anycall.protocol.BufferPool;
+import com.ztc1997.anycall.protocol.FrameChannel;
+import com.ztc1997.anycall.protocol.FrameCodec;
+import com.ztc1997.anycall.server.AnycallServer;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts {@link AnycallServer} once under su and exchanges every transaction with it as
+ * binary frames over its stdin/stdout, so a call costs a round trip instead of a process spawn.
+ * <p>
+ * Any number of calls may be in flight at once, {@link FrameChannel} completes each callback as
+ * soon as the matching reply arrives, in whatever order that is.
+ * Payloads of {@link FrameCodec#STREAM_THRESHOLD} bytes or more travel through pipes instead
+ * of the frames, so they do not hold up other calls. Oneway calls made while another thread
+ * writes oneway calls are coalesced into its next frame.
+ */
+class HelperTransport implements Transport {
+    private static final String TAG = Anycall.TAG;
+
+    private final String codePath;
+
+    private final Metrics metrics;
+
+    private Process process;
+
+    private volatile FrameChannel channel;
+
+    private volatile boolean running;
+
+    private volatile DeathListener deathListener;
+
+    /**
+     * Whether the root helper can stream large payloads.
+     */
+    private volatile boolean streams;
+
+    private final Object onewayLock = new Object();
+
+    private List<OnewayCall> oneway = new ArrayList<>();
+
+    /**
+     * Whether a thread is writing oneway calls, the calls queued meanwhile go in its next frame.
+     */
+    private boolean flushingOneway;
+
+    /**
+     * @param codePath The apk containing {@link AnycallServer}
+     */
+    HelperTransport(String codePath, Metrics metrics) {
+        this.codePath = codePath;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean isRunning() {
+        // The channel closes before it fails the pending requests
+        FrameChannel channel = this.channel;
+        return running && channel != null && channel.isOpen();
+    }
+
+    @Override
+    public void start(@Nullable final Anycall.StartShellListener listener) {
+        new Thread("anycall-helper") {
+            @Override
+            public void run() {
+                readLoop(listener);
+            }
+        }.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (channel != null) channel.close();
+        if (process != null) process.destroy();
+        channel = null;
+        process = null;
+    }
+
+    @Override
+    public void transact(final String serviceName, final int code, Parcel data,
+                         final ReplyCallback callback) {
+        long start = metrics.start();
+        byte[] payload = data.marshall();
+        metrics.record(serviceName, code, MethodStats.PHASE_MARSHAL, start);
+
+        PendingReply pendingReply = new PendingReply() {
+            @Override
+            Runnable decode(final int resultCode, @Nullable byte[] payload, int payloadLength) {
+                Parcel reply = null;
+                if (resultCode == 0 && payload != null) {
+                    long start = metrics.start();
+                    reply = ReplyParcels.obtain();
+                    reply.unmarshall(payload, 0, payloadLength);
+                    reply.setDataPosition(0);
+                    metrics.record(serviceName, code, MethodStats.PHASE_DECODE, start);
+                }
+
+                final Parcel finalReply = reply;
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReply(resultCode, finalReply);
+                    }
+                };
+            }
+        };
+        pendingReply.handle = CallHandle.of(callback);
+
+        if (streams && payload.length >= FrameCodec.STREAM_THRESHOLD) {
+            sendStream(code, serviceName, payload, pendingReply);
+        } else {
+            send(FrameCodec.TYPE_CALL, code, serviceName, payload, payload.length, pendingReply);
+        }
+    }
+
+    @Override
+    public void transact(String[] serviceNames, int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        final int size = codes.length;
+        Batch calls = new Batch(size);
+        for (int i = 0; i < size; i++) {
+            calls.set(i, serviceNames[i], codes[i], data[i].marshall());
+        }
+
+        BufferPool pool = BufferPool.shared();
+        byte[] payload = pool.acquire(calls.encodedLength());
+        send(FrameCodec.TYPE_BATCH, 0, null, payload, calls.encode(payload), new PendingReply() {
+            @Override
+            Runnable decode(int resultCode, @Nullable byte[] payload, int payloadLength) {
+                Batch replies = null;
+                if (resultCode == 0 && payload != null) try {
+                    replies = Batch.decode(payload, 0, payloadLength);
+                    if (replies.size() != size) replies = null;
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+
+                final int[] resultCodes = new int[size];
+                final Parcel[] parcels = new Parcel[size];
+                for (int i = 0; i < size; i++) {
+                    if (replies == null) {
+                        resultCodes[i] = Anycall.ERROR_TRANSACTION_FAILED;
+                        continue;
+                    }
+
+                    resultCodes[i] = replies.codes[i];
+                    if (resultCodes[i] == 0 && replies.payloads[i] != null) {
+                        parcels[i] = ReplyParcels.obtain();
+                        parcels[i].unmarshall(replies.payloads[i], replies.offsets[i], replies.lengths[i]);
+                        parcels[i].setDataPosition(0);
+                    }
+                }
+
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReply(resultCodes, parcels);
+                    }
+                };
+            }
+        });
+        pool.release(payload);
+    }
+
+    @Override
+    public void transactOneway(final String serviceName, final int code, Parcel data) {
+        byte[] payload = data.marshall();
+        if (streams && payload.length >= FrameCodec.STREAM_THRESHOLD) {
+            // Too large to coalesce, stream it like a normal call and drop the reply
+            sendStream(code, serviceName, payload, new PendingReply() {
+                @Override
+                Runnable decode(int resultCode, @Nullable byte[] payload, int payloadLength) {
+                    if (resultCode != 0)
+                        Log.w(TAG, "Oneway call " + serviceName + " " + code + " failed: " + resultCode);
+                    return NO_OP;
+                }
+            });
+            return;
+        }
+
+        synchronized (onewayLock) {
+            oneway.add(new OnewayCall(serviceName, code, payload));
+            if (flushingOneway) return;
+            flushingOneway = true;
+        }
+        flushOneway();
+    }
+
+    /**
+     * Writes the queued oneway calls, one frame per round, until no more are queued.
+     */
+    private void flushOneway() {
+        BufferPool pool = BufferPool.shared();
+        while (true) {
+            List<OnewayCall> calls;
+            synchronized (onewayLock) {
+                if (oneway.isEmpty()) {
+                    flushingOneway = false;
+                    return;
+                }
+                calls = oneway;
+                oneway = new ArrayList<>();
+            }
+
+            Batch batch = new Batch(calls.size());
+            for (int i = 0; i < calls.size(); i++) {
+                OnewayCall call = calls.get(i);
+                batch.set(i, call.serviceName, call.code, call.payload);
+            }
+
+            FrameChannel channel;
+            synchronized (this) {
+                channel = running ? this.channel : null;
+            }
+            byte[] payload = pool.acquire(batch.encodedLength());
+            try {
+                if (channel == null || !channel.sendOneway(FrameCodec.TYPE_ONEWAY, 0, null, payload, batch.encode(payload)))
+                    Log.w(TAG, calls.size() + " oneway calls dropped, not running");
+                else if (BuildConfig.DEBUG)
+                    Log.d(TAG, "oneway calls = " + calls.size());
+            } finally {
+                pool.release(payload);
+            }
+        }
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    @Override
+    public void getServiceCacheStats(final StatsCallback callback) {
+        send(FrameCodec.TYPE_STATS, 0, null, null, 0, new PendingReply() {
+            @Override
+            Runnable decode(int resultCode, @Nullable byte[] payload, int payloadLength) {
+                final ServiceCacheStats stats;
+                if (resultCode == 0 && payload != null && payloadLength >= 20) {
+                    ByteBuffer buffer = ByteBuffer.wrap(payload, 0, payloadLength);
+                    stats = new ServiceCacheStats(buffer.getLong(), buffer.getLong(), buffer.getInt());
+                } else {
+                    stats = null;
+                }
+
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onStats(stats);
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Writes a request frame, or fails it right away if the server is not running. The
+     * payload is no longer used once this method returns.
+     */
+    private void send(byte type, int code, @Nullable String serviceName, @Nullable byte[] payload,
+                      int payloadLength, final PendingReply pendingReply) {
+        pendingReply.serviceName = serviceName;
+        pendingReply.code = code;
+        pendingReply.sentAt = metrics.start();
+        FrameChannel channel;
+        synchronized (this) {
+            channel = running ? this.channel : null;
+        }
+
+        // The channel fails the request itself if the write breaks the pipe
+        final int id = channel == null ? 0
+                : channel.send(type, code, serviceName, payload, payloadLength, pendingReply);
+        if (id == 0) {
+            pendingReply.decode(Anycall.ERROR_TRANSACTION_FAILED, null, 0).run();
+            return;
+        }
+        metrics.record(serviceName, code, MethodStats.PHASE_ENCODE, pendingReply.sentAt);
+
+        if (pendingReply.handle != null) {
+            final FrameChannel sentOn = channel;
+            pendingReply.handle.setCanceller(new Runnable() {
+                @Override
+                public void run() {
+                    // Unless the reply has arrived, frees the pending slot and whatever waits on the call
+                    if (sentOn.cancel(id))
+                        pendingReply.decode(Anycall.ERROR_TRANSACTION_FAILED, null, 0).run();
+                }
+            });
+        }
+
+        if (BuildConfig.DEBUG)
+            Log.d(TAG, "request id = " + id + ", type = " + type + ", service = " + serviceName + ", code = " + code);
+    }
+
+    /**
+     * Streams a large payload through a new pipe, written on the calling thread while the
+     * root helper reads it. If the root helper cannot open the pipe, the call is sent again
+     * inline and later calls are no longer streamed.
+     */
+    private void sendStream(final int code, final String serviceName, final byte[] payload,
+                            final PendingReply pendingReply) {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            pendingReply.decode(Anycall.ERROR_TRANSACTION_FAILED, null, 0).run();
+            return;
+        }
+
+        // Whichever of the write below and a RESULT_STREAM_UNAVAILABLE reply comes second
+        // resends the call inline
+        final AtomicBoolean handedOver = new AtomicBoolean();
+        byte[] header = ByteBuffer.allocate(8).putInt(pipe[0].getFd()).putInt(payload.length).array();
+        PendingReply streamReply = new PendingReply() {
+            @Override
+            Runnable decode(int resultCode, @Nullable byte[] replyPayload, int replyLength) {
+                // Fails the write below if the root helper never reads the pipe
+                closeQuietly(pipe[0]);
+                if (resultCode != FrameCodec.RESULT_STREAM_UNAVAILABLE)
+                    return pendingReply.decode(resultCode, replyPayload, replyLength);
+
+                if (streams) Log.w(TAG, "Root helper cannot open pipes, sending payloads inline");
+                streams = false;
+                if (!handedOver.compareAndSet(false, true)) {
+                    // Not on the reader thread, the write could wait for replies behind this one
+                    new Thread("anycall-resend") {
+                        @Override
+                        public void run() {
+                            send(FrameCodec.TYPE_CALL, code, serviceName, payload, payload.length, pendingReply);
+                        }
+                    }.start();
+                }
+                return NO_OP;
+            }
+        };
+        streamReply.handle = pendingReply.handle;
+        send(FrameCodec.TYPE_STREAM_CALL, code, serviceName, header, header.length, streamReply);
+
+        FileOutputStream out = new FileOutputStream(pipe[1].getFileDescriptor());
+        try {
+            out.write(payload);
+        } catch (IOException e) {
+            // The reply reports the failure
+            Log.w(TAG, e);
+        } finally {
+            closeQuietly(pipe[1]);
+        }
+
+        if (!handedOver.compareAndSet(false, true))
+            send(FrameCodec.TYPE_CALL, code, serviceName, payload, payload.length, pendingReply);
+    }
+
+    private void readLoop(@Nullable Anycall.StartShellListener listener) {
+        FrameChannel channel;
+        Process p = null;
+        ParcelFileDescriptor[] bulkPipe = null;
+        InputStream bulkIn = null;
+        boolean ready = false;
+        try {
+            // Large replies come through this pipe, the root helper opens its write end
+            bulkPipe = ParcelFileDescriptor.createPipe();
+            bulkIn = new ParcelFileDescriptor.AutoCloseInputStream(bulkPipe[0]);
+
+            p = Runtime.getRuntime().exec("su");
+            OutputStream os = p.getOutputStream();
+            os.write(("export CLASSPATH=" + codePath + "\n").getBytes());
+            os.write(("exec app_process /system/bin " + AnycallServer.class.getName() + " "
+                    + android.os.Process.myPid() + " " + bulkPipe[1].getFd() + " 2>/dev/null\n").getBytes());
+            os.flush();
+
+            synchronized (this) {
+                process = p;
+            }
+
+            InputStream is = p.getInputStream();
+            if (!awaitReady(is)) {
+                stop();
+                notifyStarted(listener, false);
+                return;
+            }
+
+            channel = new FrameChannel(new FrameCodec(is, os), bulkIn, Anycall.ERROR_SESSION_DIED);
+            synchronized (this) {
+                this.channel = channel;
+            }
+
+            // Warm up the channel with a round trip before reporting the server ready
+            streams = (channel.ping() & FrameCodec.CAPABILITY_STREAMS) != 0;
+            ready = true;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            stop();
+            notifyStarted(listener, false);
+            return;
+        } finally {
+            // Only the root helper keeps the write end, so reads end when it exits
+            if (bulkPipe != null) closeQuietly(bulkPipe[1]);
+            if (!ready && bulkIn != null) closeQuietly(bulkIn);
+        }
+
+        running = true;
+        notifyStarted(listener, true);
+
+        try {
+            // Fails the pending requests once the root helper is gone
+            channel.run();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        } finally {
+            boolean died;
+            synchronized (this) {
+                // Not if stop() closed the channel, and a restart may be replacing it already
+                died = running && this.channel == channel;
+                if (this.channel == channel) {
+                    running = false;
+                    this.channel = null;
+                }
+                if (process == p) process = null;
+            }
+            channel.close();
+            p.destroy();
+            closeQuietly(bulkIn);
+            DeathListener deathListener = this.deathListener;
+            if (died && deathListener != null) deathListener.onDied();
+        }
+    }
+
+    /**
+     * Skips whatever the shell prints before the server announces itself.
+     */
+    static boolean awaitReady(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = is.read()) >= 0) {
+            if (c != '\n') {
+                line.append((char) c);
+            } else if (AnycallServer.READY.contentEquals(line)) {
+                return true;
+            } else {
+                line.setLength(0);
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try {
+            fd.close();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private static void notifyStarted(@Nullable Anycall.StartShellListener listener, boolean success) {
+        if (listener != null) listener.onFinish(success);
+    }
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static class OnewayCall {
+        final String serviceName;
+
+        final int code;
+
+        final byte[] payload;
+
+        OnewayCall(String serviceName, int code, byte[] payload) {
+            this.serviceName = serviceName;
+            this.code = code;
+            this.payload = payload;
+        }
+    }
+
+    private abstract class PendingReply implements FrameChannel.ReplyHandler {
+        String serviceName;
+
+        int code;
+
+        long sentAt;
+
+        /**
+         * Cancels the call, null if the caller cannot
+         */
+        @Nullable
+        CallHandle handle;
+
+        /**
+         * Called on the reader thread, or on the calling thread if the request could not be
+         * sent. The payload is only valid until it returns.
+         *
+         * @param payload Holds the payload of the reply from offset 0, null if the request failed
+         * @return Delivers the decoded reply to the callback
+         */
+        abstract Runnable decode(int resultCode, @Nullable byte[] payload, int payloadLength);
+
+        @Override
+        public void onReply(int resultCode, @Nullable byte[] payload, int payloadLength) {
+            if (payload != null) metrics.record(serviceName, code, MethodStats.PHASE_EXECUTE, sentAt);
+            decode(resultCode, payload, payloadLength).run();
+        }
+    }
+}
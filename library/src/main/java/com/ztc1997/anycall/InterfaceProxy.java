@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Implements a {@link BinderInterface} annotated interface by calling through
+ * {@link Anycall}. Everything that needs reflection, signatures, reply readers and
+ * parcelable creators, is resolved once when the proxy is created.
+ */
+@SuppressWarnings("TryWithIdenticalCatches")
+class InterfaceProxy implements InvocationHandler {
+    private final Class<?> cls;
+
+    private final Map<Method, ProxyMethod> methods;
+
+    private InterfaceProxy(Class<?> cls, Map<Method, ProxyMethod> methods) {
+        this.cls = cls;
+        this.methods = methods;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the interface cannot be mapped to its system interface
+     */
+    static <T> T create(Anycall anycall, Class<T> cls) {
+        BinderInterface info = cls.getAnnotation(BinderInterface.class);
+        if (!cls.isInterface() || info == null)
+            throw new IllegalArgumentException(cls.getName() + " is not an interface annotated with @BinderInterface");
+
+        Map<Method, ProxyMethod> methods = new HashMap<>();
+        for (Method method : cls.getMethods()) {
+            methods.put(method, new ProxyMethod(anycall, info, method));
+        }
+        return cls.cast(Proxy.newProxyInstance(cls.getClassLoader(), new Class<?>[]{cls},
+                new InterfaceProxy(cls, methods)));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return cls.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return method.invoke(this, args);
+            }
+        }
+        return methods.get(method).invoke(args);
+    }
+
+    private static class ProxyMethod {
+        private final CallSignature signature;
+
+        private final Anycall.ReplyReader<Object> reader;
+
+        private final boolean async;
+
+        private final long timeoutMillis;
+
+        ProxyMethod(Anycall anycall, BinderInterface info, Method method) {
+            signature = anycall.compileSignature(info.descriptor(), info.service(), method.getName(),
+                    method.getParameterTypes());
+            if (signature == null)
+                throw new IllegalArgumentException("Cannot obtain the transaction code of " + method.getName());
+
+            // CallFuture<T> returns are asynchronous and read a T
+            Type valueType = method.getGenericReturnType();
+            async = method.getReturnType() == CallFuture.class;
+            if (async) {
+                valueType = valueType instanceof ParameterizedType ?
+                        ((ParameterizedType) valueType).getActualTypeArguments()[0] : Object.class;
+            }
+            reader = new ValueReader(rawClass(valueType), method.getAnnotation(ParcelableType.class),
+                    method.getDeclaringClass().getClassLoader());
+            timeoutMillis = info.timeoutMillis();
+        }
+
+        Object invoke(Object[] args) throws Throwable {
+            CallSignature.Invocation invocation = signature.begin();
+            if (args != null) {
+                for (Object arg : args) {
+                    invocation.put(arg);
+                }
+            }
+
+            if (async) return invocation.callAsync(reader);
+
+            // Completed where the reply arrives, the callback executor may be this very thread
+            CallFuture<Object> future = invocation.callAsync(reader, Anycall.DIRECT);
+
+            try {
+                return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                throw e;
+            } catch (InterruptedException e) {
+                future.cancel(false);
+                throw e;
+            }
+        }
+
+        private static Class<?> rawClass(Type type) {
+            if (type instanceof Class) return (Class<?>) type;
+            if (type instanceof ParameterizedType) return rawClass(((ParameterizedType) type).getRawType());
+            return Object.class;
+        }
+    }
+
+    /**
+     * Reads a return value the way AIDL writes it, after the exception header.
+     */
+    private static class ValueReader implements Anycall.ReplyReader<Object> {
+        private static final int VOID = 0;
+        private static final int BOOLEAN = 1;
+        private static final int BYTE = 2;
+        private static final int INT = 3;
+        private static final int LONG = 4;
+        private static final int FLOAT = 5;
+        private static final int DOUBLE = 6;
+        private static final int STRING = 7;
+        private static final int BINDER = 8;
+        private static final int BOOLEAN_ARRAY = 9;
+        private static final int BYTE_ARRAY = 10;
+        private static final int INT_ARRAY = 11;
+        private static final int LONG_ARRAY = 12;
+        private static final int STRING_ARRAY = 13;
+        private static final int PARCELABLE = 14;
+        private static final int TYPED_LIST = 15;
+        private static final int LIST = 16;
+
+        private final int kind;
+
+        private final Parcelable.Creator<?> creator;
+
+        private final ClassLoader classLoader;
+
+        ValueReader(Class<?> type, ParcelableType parcelableType, ClassLoader classLoader) {
+            this.classLoader = classLoader;
+            if (parcelableType != null) {
+                kind = List.class.isAssignableFrom(type) ? TYPED_LIST : PARCELABLE;
+                creator = findCreator(parcelableType.value());
+                return;
+            }
+
+            creator = Parcelable.class.isAssignableFrom(type) ? findCreator(type.getName()) : null;
+            if (creator != null) kind = PARCELABLE;
+            else if (type == void.class || type == Void.class) kind = VOID;
+            else if (type == boolean.class || type == Boolean.class) kind = BOOLEAN;
+            else if (type == byte.class || type == Byte.class) kind = BYTE;
+            else if (type == int.class || type == Integer.class) kind = INT;
+            else if (type == long.class || type == Long.class) kind = LONG;
+            else if (type == float.class || type == Float.class) kind = FLOAT;
+            else if (type == double.class || type == Double.class) kind = DOUBLE;
+            else if (type == String.class) kind = STRING;
+            else if (type == IBinder.class) kind = BINDER;
+            else if (type == boolean[].class) kind = BOOLEAN_ARRAY;
+            else if (type == byte[].class) kind = BYTE_ARRAY;
+            else if (type == int[].class) kind = INT_ARRAY;
+            else if (type == long[].class) kind = LONG_ARRAY;
+            else if (type == String[].class) kind = STRING_ARRAY;
+            else if (List.class.isAssignableFrom(type)) kind = LIST;
+            else throw new IllegalArgumentException("Unsupported return type " + type.getName());
+        }
+
+        @Override
+        public Object read(Parcel reply) throws Exception {
+            reply.readException();
+            switch (kind) {
+                case VOID:
+                    return null;
+                case BOOLEAN:
+                    return reply.readInt() != 0;
+                case BYTE:
+                    return reply.readByte();
+                case INT:
+                    return reply.readInt();
+                case LONG:
+                    return reply.readLong();
+                case FLOAT:
+                    return reply.readFloat();
+                case DOUBLE:
+                    return reply.readDouble();
+                case STRING:
+                    return reply.readString();
+                case BINDER:
+                    return reply.readStrongBinder();
+                case BOOLEAN_ARRAY:
+                    return reply.createBooleanArray();
+                case BYTE_ARRAY:
+                    return reply.createByteArray();
+                case INT_ARRAY:
+                    return reply.createIntArray();
+                case LONG_ARRAY:
+                    return reply.createLongArray();
+                case STRING_ARRAY:
+                    return reply.createStringArray();
+                case PARCELABLE:
+                    return reply.readInt() != 0 ? creator.createFromParcel(reply) : null;
+                case TYPED_LIST:
+                    return reply.createTypedArrayList(creator);
+                case LIST:
+                    return reply.readArrayList(classLoader);
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private static Parcelable.Creator<?> findCreator(String className) {
+            try {
+                return (Parcelable.Creator<?>) Class.forName(className).getField("CREATOR").get(null);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("No parcelable class " + className, e);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("No CREATOR in " + className, e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("No CREATOR in " + className, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets, two per power of two from a microsecond to about 68 seconds,
+ * so recording is a few atomic increments and percentiles are within 50% of the true value.
+ */
+class LatencyHistogram {
+    private static final int MIN_SHIFT = 10;
+
+    private static final int MAX_SHIFT = 36;
+
+    /**
+     * One bucket below a microsecond, two per power of two and one above 68 seconds.
+     */
+    static final int BUCKETS = 2 + (MAX_SHIFT - MIN_SHIFT) * 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current;
+        while (nanos > (current = max.get())) {
+            if (max.compareAndSet(current, nanos)) break;
+        }
+    }
+
+    LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new LatencySnapshot(copy, count.get(), sum.get(), max.get());
+    }
+
+    static int bucketOf(long nanos) {
+        if (nanos < (1L << MIN_SHIFT)) return 0;
+        int shift = 63 - Long.numberOfLeadingZeros(nanos);
+        if (shift >= MAX_SHIFT) return BUCKETS - 1;
+        int upperHalf = (int) ((nanos >>> (shift - 1)) & 1);
+        return 1 + (shift - MIN_SHIFT) * 2 + upperHalf;
+    }
+
+    /**
+     * @return The exclusive upper bound of the durations counted by a bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0) return 1L << MIN_SHIFT;
+        if (bucket == BUCKETS - 1) return Long.MAX_VALUE;
+        int shift = MIN_SHIFT + (bucket - 1) / 2;
+        return (bucket - 1) % 2 == 0 ? (1L << shift) + (1L << (shift - 1)) : 1L << (shift + 1);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+/**
+ * The durations recorded for one phase of a method, in nanoseconds.
+ */
+public final class LatencySnapshot {
+    private final long[] counts;
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    LatencySnapshot(long[] counts, long count, long sum, long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sum;
+    }
+
+    public long getMaxNanos() {
+        return max;
+    }
+
+    public long getMeanNanos() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param quantile Between 0 and 1, e.g. 0.99
+     * @return An upper bound of the duration below which that share of the calls finished,
+     * 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double quantile) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(LatencyHistogram.upperBound(i), max);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count = " + count + ", mean = " + getMeanNanos() + "ns, p50 = " + getPercentileNanos(0.5)
+                + "ns, p99 = " + getPercentileNanos(0.99) + "ns, max = " + max + "ns";
+    }
+}
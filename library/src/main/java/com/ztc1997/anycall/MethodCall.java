@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+
+/**
+ * One call of a batch, see {@link Anycall#callMethods(java.util.List, Anycall.BatchResultListener)}.
+ */
+public class MethodCall {
+    public final String className;
+
+    public final String serviceName;
+
+    public final String methodName;
+
+    public final Parcel data;
+
+    /**
+     * @param data The data parcel, still owned by the caller
+     */
+    public MethodCall(@NonNull String className, @NonNull String serviceName,
+                      @NonNull String methodName, @NonNull Parcel data) {
+        this.className = className;
+        this.serviceName = serviceName;
+        this.methodName = methodName;
+        this.data = data;
+    }
+}
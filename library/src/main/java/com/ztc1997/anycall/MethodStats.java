@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.support.annotation.Nullable;
+
+/**
+ * The timings recorded for the calls of one method, split by phase.
+ */
+public final class MethodStats {
+
+    /**
+     * Looking up the transaction code from the class and method names.
+     */
+    public static final int PHASE_RESOLVE = 0;
+
+    /**
+     * Marshalling the data parcel.
+     */
+    public static final int PHASE_MARSHAL = 1;
+
+    /**
+     * Encoding and writing the request to the root session.
+     */
+    public static final int PHASE_ENCODE = 2;
+
+    /**
+     * Waiting for a free slot, only when admission control is on.
+     *
+     * @see Anycall#setAdmissionControl(int, int, int)
+     */
+    public static final int PHASE_ADMISSION = 3;
+
+    /**
+     * Waiting for the root session to start or restart.
+     */
+    public static final int PHASE_QUEUE = 4;
+
+    /**
+     * From the request being sent until its reply arrives, mostly the time spent on the root side.
+     */
+    public static final int PHASE_EXECUTE = 5;
+
+    /**
+     * Unmarshalling the reply.
+     */
+    public static final int PHASE_DECODE = 6;
+
+    /**
+     * Running the listener.
+     */
+    public static final int PHASE_LISTENER = 7;
+
+    /**
+     * From the call until its listener returns.
+     */
+    public static final int PHASE_TOTAL = 8;
+
+    static final int PHASE_COUNT = 9;
+
+    /**
+     * Null until the method is called or resolved by name.
+     */
+    @Nullable
+    public final String className;
+
+    @Nullable
+    public final String methodName;
+
+    public final String serviceName;
+
+    public final int transactionCode;
+
+    private final LatencySnapshot[] phases;
+
+    MethodStats(@Nullable String className, @Nullable String methodName, String serviceName,
+                int transactionCode, LatencySnapshot[] phases) {
+        this.className = className;
+        this.methodName = methodName;
+        this.serviceName = serviceName;
+        this.transactionCode = transactionCode;
+        this.phases = phases;
+    }
+
+    /**
+     * @param phase One of the {@code PHASE_} constants
+     */
+    public LatencySnapshot get(int phase) {
+        return phases[phase];
+    }
+
+    @Override
+    public String toString() {
+        return (methodName != null ? className + "." + methodName : "code " + transactionCode)
+                + "@" + serviceName + ": " + phases[PHASE_TOTAL];
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the phase timings of calls per method, see {@link MethodStats}. While disabled,
+ * recording costs a volatile read.
+ */
+class Metrics {
+    private volatile boolean enabled;
+
+    /**
+     * Indexed by transaction code, codes are small. The arrays are copied on write, so
+     * recording never takes a lock once a method has been seen.
+     */
+    private final ConcurrentHashMap<String, MethodMetrics[]> methods = new ConcurrentHashMap<>();
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return The current time to measure a phase from, 0 if disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * @param start From {@link #start()}, nothing is recorded if 0
+     */
+    void record(String serviceName, int code, int phase, long start) {
+        if (start == 0 || serviceName == null) return;
+        get(serviceName, code).phases[phase].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the resolution of a method and remembers its names.
+     */
+    void recordResolve(String className, String serviceName, String methodName, int code,
+                       long start) {
+        if (start == 0 || serviceName == null) return;
+        MethodMetrics method = get(serviceName, code);
+        method.className = className;
+        method.methodName = methodName;
+        method.phases[MethodStats.PHASE_RESOLVE].record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return A listener recording the listener and total phases, or the listener itself if
+     * disabled
+     */
+    Anycall.CallMethodResultListener wrap(final String serviceName, final int code,
+                                          @Nullable final Anycall.CallMethodResultListener listener) {
+        final long start = start();
+        if (start == 0) return listener;
+
+        return new Anycall.CallMethodResultListener() {
+            @Override
+            public boolean onResult(int resultCode, @Nullable Parcel reply) {
+                long delivered = System.nanoTime();
+                boolean shouldRecycle = listener == null || listener.onResult(resultCode, reply);
+                long now = System.nanoTime();
+
+                MethodMetrics method = get(serviceName, code);
+                method.phases[MethodStats.PHASE_LISTENER].record(now - delivered);
+                method.phases[MethodStats.PHASE_TOTAL].record(now - start);
+                return shouldRecycle;
+            }
+        };
+    }
+
+    List<MethodStats> snapshot() {
+        List<MethodStats> stats = new ArrayList<>();
+        for (Map.Entry<String, MethodMetrics[]> entry : methods.entrySet()) {
+            MethodMetrics[] codes = entry.getValue();
+            for (int code = 0; code < codes.length; code++) {
+                if (codes[code] != null) stats.add(codes[code].snapshot(entry.getKey(), code));
+            }
+        }
+        return stats;
+    }
+
+    void reset() {
+        synchronized (methods) {
+            methods.clear();
+        }
+    }
+
+    private MethodMetrics get(String serviceName, int code) {
+        // Codes outside the usual range share one slot
+        int index = code >= 0 && code < 0x10000 ? code : 0;
+        MethodMetrics[] codes = methods.get(serviceName);
+        if (codes != null && codes.length > index && codes[index] != null) return codes[index];
+
+        synchronized (methods) {
+            codes = methods.get(serviceName);
+            if (codes != null && codes.length > index && codes[index] != null) return codes[index];
+
+            int length = codes == null ? 32 : codes.length;
+            if (length <= index) length = Math.max(index + 1, length * 2);
+            codes = codes == null ? new MethodMetrics[length] : Arrays.copyOf(codes, length);
+            MethodMetrics method = new MethodMetrics();
+            codes[index] = method;
+            methods.put(serviceName, codes);
+            return method;
+        }
+    }
+
+    private static class MethodMetrics {
+        volatile String className;
+
+        volatile String methodName;
+
+        final LatencyHistogram[] phases = new LatencyHistogram[MethodStats.PHASE_COUNT];
+
+        MethodMetrics() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        MethodStats snapshot(String serviceName, int code) {
+            LatencySnapshot[] snapshots = new LatencySnapshot[phases.length];
+            for (int i = 0; i < phases.length; i++) {
+                snapshots[i] = phases[i].snapshot();
+            }
+            return new MethodStats(className, methodName, serviceName, code, snapshots);
+        }
+    }
+}
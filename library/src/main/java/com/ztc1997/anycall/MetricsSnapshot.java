@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import java.util.List;
+
+/**
+ * The call timings and load of an {@link Anycall} at one point in time.
+ */
+public final class MetricsSnapshot {
+
+    /**
+     * One entry per method called since metrics were enabled or reset.
+     */
+    public final List<MethodStats> methods;
+
+    /**
+     * The number of calls waiting for the root session to start.
+     */
+    public final int queueDepth;
+
+    /**
+     * The number of calls in flight on each root session.
+     */
+    public final int[] inFlight;
+
+    /**
+     * The number of calls waiting for a free slot in each priority lane, indexed by
+     * {@link Anycall#PRIORITY_INTERACTIVE} and the other priorities.
+     *
+     * @see Anycall#setAdmissionControl(int, int, int)
+     */
+    public final int[] laneDepths;
+
+    /**
+     * The number of calls that found the lanes full since the {@link Anycall} was created.
+     */
+    public final long overflows;
+
+    MetricsSnapshot(List<MethodStats> methods, int queueDepth, int[] inFlight, int[] laneDepths,
+                    long overflows) {
+        this.methods = methods;
+        this.queueDepth = queueDepth;
+        this.inFlight = inFlight;
+        this.laneDepths = laneDepths;
+        this.overflows = overflows;
+    }
+}
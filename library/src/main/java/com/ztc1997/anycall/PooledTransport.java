@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Spreads calls over several independent root sessions so they execute in parallel.
+ * <p>
+ * Each service has a preferred session, keeping its calls together while the sessions are
+ * evenly loaded. Once the preferred session has {@link #AFFINITY_SLACK} more calls in flight
+ * than the least loaded one, calls go to the least loaded one instead. Oneway calls always go
+ * to the preferred session, which executes them in order.
+ */
+class PooledTransport implements Transport {
+    private static final int AFFINITY_SLACK = 4;
+
+    private final Factory factory;
+
+    private Transport[] sessions;
+
+    private AtomicIntegerArray inFlight;
+
+    private volatile DeathListener deathListener;
+
+    /**
+     * Tells the listener of the pool about the death of any session.
+     */
+    private final DeathListener sessionDeathListener = new DeathListener() {
+        @Override
+        public void onDied() {
+            DeathListener listener = deathListener;
+            if (listener != null) listener.onDied();
+        }
+    };
+
+    PooledTransport(Factory factory, int size) {
+        this.factory = factory;
+        resize(size);
+    }
+
+    /**
+     * Only allowed while stopped.
+     */
+    synchronized void resize(int size) {
+        if (size < 1) throw new IllegalArgumentException("size < 1");
+        if (sessions != null && sessions.length == size) return;
+        if (isRunning()) throw new IllegalStateException("Cannot resize a running pool");
+
+        sessions = new Transport[size];
+        for (int i = 0; i < size; i++) {
+            sessions[i] = factory.create();
+            sessions[i].setDeathListener(sessionDeathListener);
+        }
+        inFlight = new AtomicIntegerArray(size);
+    }
+
+    synchronized int size() {
+        return sessions.length;
+    }
+
+    /**
+     * @return The number of calls in flight on each session
+     */
+    synchronized int[] getInFlight() {
+        int[] counts = new int[inFlight.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = inFlight.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        if (sessions == null) return false;
+        for (Transport session : sessions) {
+            if (session.isRunning()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts the sessions that are not running, which after the death of a session restarts
+     * just that one. Succeeds if at least one of them could be started, or if all were running.
+     */
+    @Override
+    public void start(@Nullable final Anycall.StartShellListener listener) {
+        List<Transport> stopped = new ArrayList<>();
+        synchronized (this) {
+            for (Transport session : sessions) {
+                if (!session.isRunning()) stopped.add(session);
+            }
+        }
+        if (stopped.isEmpty()) {
+            if (listener != null) listener.onFinish(true);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(stopped.size());
+        final AtomicBoolean anySuccess = new AtomicBoolean();
+        for (Transport session : stopped) {
+            session.start(new Anycall.StartShellListener() {
+                @Override
+                public void onFinish(boolean success) {
+                    if (success) anySuccess.set(true);
+                    if (remaining.decrementAndGet() == 0 && listener != null)
+                        listener.onFinish(anySuccess.get());
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        for (Transport session : sessions) {
+            session.stop();
+        }
+    }
+
+    @Override
+    public void transact(String serviceName, int code, Parcel data, final ReplyCallback callback) {
+        final AtomicIntegerArray inFlight;
+        final int index;
+        Transport session;
+        synchronized (this) {
+            inFlight = this.inFlight;
+            index = choose(serviceName);
+            session = sessions[index];
+        }
+
+        inFlight.incrementAndGet(index);
+        session.transact(serviceName, code, data, CallHandle.attach(CallHandle.of(callback), new ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                inFlight.decrementAndGet(index);
+                callback.onReply(resultCode, reply);
+            }
+        }));
+    }
+
+    @Override
+    public void transact(String[] serviceNames, int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        final AtomicIntegerArray inFlight;
+        final int index;
+        Transport session;
+        synchronized (this) {
+            inFlight = this.inFlight;
+            index = choose(serviceNames.length > 0 ? serviceNames[0] : null);
+            session = sessions[index];
+        }
+
+        inFlight.incrementAndGet(index);
+        session.transact(serviceNames, codes, data, new BatchReplyCallback() {
+            @Override
+            public void onReply(int[] resultCodes, Parcel[] replies) {
+                inFlight.decrementAndGet(index);
+                callback.onReply(resultCodes, replies);
+            }
+        });
+    }
+
+    /**
+     * Oneway calls are not counted as in flight, they never come back.
+     */
+    @Override
+    public void transactOneway(String serviceName, int code, Parcel data) {
+        Transport session;
+        synchronized (this) {
+            // Never the least loaded, that could overtake earlier oneway calls to the service
+            session = sessions[preferred(serviceName)];
+        }
+        session.transactOneway(serviceName, code, data);
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    /**
+     * Sums up the statistics of all running sessions.
+     */
+    @Override
+    public void getServiceCacheStats(final StatsCallback callback) {
+        Transport[] sessions;
+        synchronized (this) {
+            sessions = this.sessions;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(sessions.length);
+        final ServiceCacheStats[] results = new ServiceCacheStats[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            final int index = i;
+            sessions[i].getServiceCacheStats(new StatsCallback() {
+                @Override
+                public void onStats(@Nullable ServiceCacheStats stats) {
+                    results[index] = stats;
+                    if (remaining.decrementAndGet() > 0) return;
+
+                    long hits = 0, misses = 0;
+                    int size = 0;
+                    boolean any = false;
+                    for (ServiceCacheStats result : results) {
+                        if (result == null) continue;
+                        any = true;
+                        hits += result.hits;
+                        misses += result.misses;
+                        size += result.size;
+                    }
+                    callback.onStats(any ? new ServiceCacheStats(hits, misses, size) : null);
+                }
+            });
+        }
+    }
+
+    private int preferred(@Nullable String serviceName) {
+        return serviceName == null ? 0 : (serviceName.hashCode() & Integer.MAX_VALUE) % sessions.length;
+    }
+
+    private int choose(@Nullable String serviceName) {
+        int preferred = preferred(serviceName);
+
+        int least = -1;
+        for (int i = 0; i < sessions.length; i++) {
+            if (!sessions[i].isRunning()) continue;
+            if (least < 0 || inFlight.get(i) < inFlight.get(least)) least = i;
+        }
+
+        // Nothing is running, let the preferred session report the failure
+        if (least < 0) return preferred;
+        if (sessions[preferred].isRunning()
+                && inFlight.get(preferred) <= inFlight.get(least) + AFFINITY_SLACK)
+            return preferred;
+        return least;
+    }
+}
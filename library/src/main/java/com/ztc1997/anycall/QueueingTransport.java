@@ -0,0 +1,307 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the startup of another transport and holds back the calls issued while it is still
+ * starting, or restarting, sending them once it is ready or failing them if it could not start.
+ */
+class QueueingTransport implements Transport {
+    private final Transport transport;
+
+    private final Metrics metrics;
+
+    private final Object lock = new Object();
+
+    private int state = Anycall.STATE_STOPPED;
+
+    private List<Anycall.StartShellListener> startListeners = new ArrayList<>();
+
+    private List<QueuedCall> queue = new ArrayList<>();
+
+    /**
+     * Whether the queued calls are being sent after the start, new calls are queued behind
+     * them meanwhile so they keep their order.
+     */
+    private boolean flushing;
+
+    QueueingTransport(Transport transport, Metrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The number of calls waiting for the transport to start
+     */
+    int getQueueDepth() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @see Anycall#getState()
+     */
+    int getState() {
+        synchronized (lock) {
+            if (flushing) return Anycall.STATE_STARTING;
+            if (state == Anycall.STATE_READY && !transport.isRunning()) return Anycall.STATE_FAILED;
+            return state;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return transport.isRunning();
+    }
+
+    @Override
+    public void start(@Nullable Anycall.StartShellListener listener) {
+        synchronized (lock) {
+            if (state == Anycall.STATE_STARTING) {
+                if (listener != null) startListeners.add(listener);
+                return;
+            }
+            if (state != Anycall.STATE_READY || !transport.isRunning()) {
+                state = Anycall.STATE_STARTING;
+                if (listener != null) startListeners.add(listener);
+                listener = null;
+            }
+        }
+
+        // Already running
+        if (listener != null) {
+            listener.onFinish(true);
+            return;
+        }
+
+        transport.start(new Anycall.StartShellListener() {
+            @Override
+            public void onFinish(boolean success) {
+                onStarted(success);
+            }
+        });
+    }
+
+    /**
+     * Starts the parts of the transport that are not running again after one died. Calls are
+     * held back meanwhile if no part is left running.
+     *
+     * @param listener Called once the restart is over, unless this method returns false
+     * @return False if the transport was stopped meanwhile
+     */
+    boolean restart(final Anycall.StartShellListener listener) {
+        final boolean holding;
+        synchronized (lock) {
+            if (state == Anycall.STATE_STOPPED) return false;
+            if (state == Anycall.STATE_STARTING) {
+                startListeners.add(listener);
+                return true;
+            }
+
+            holding = !transport.isRunning();
+            if (holding) {
+                state = Anycall.STATE_STARTING;
+                startListeners.add(listener);
+            }
+        }
+
+        transport.start(new Anycall.StartShellListener() {
+            @Override
+            public void onFinish(boolean success) {
+                if (holding) onStarted(success);
+                else listener.onFinish(success);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        transport.stop();
+        finish(Anycall.STATE_STOPPED);
+    }
+
+    @Override
+    public void transact(final String serviceName, final int code, Parcel data,
+                         final ReplyCallback callback) {
+        synchronized (lock) {
+            if (isHolding()) {
+                // The caller may recycle the data as soon as this method returns
+                final Parcel copy = Parcels.copy(data);
+                final long queuedAt = metrics.start();
+                queue.add(new QueuedCall() {
+                    @Override
+                    public void send() {
+                        metrics.record(serviceName, code, MethodStats.PHASE_QUEUE, queuedAt);
+                        transport.transact(serviceName, code, copy, callback);
+                        copy.recycle();
+                    }
+
+                    @Override
+                    public void fail() {
+                        copy.recycle();
+                        callback.onReply(Anycall.ERROR_TRANSACTION_FAILED, null);
+                    }
+                });
+                return;
+            }
+        }
+        transport.transact(serviceName, code, data, callback);
+    }
+
+    @Override
+    public void transact(final String[] serviceNames, final int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        synchronized (lock) {
+            if (isHolding()) {
+                final Parcel[] copies = new Parcel[data.length];
+                for (int i = 0; i < data.length; i++) {
+                    copies[i] = Parcels.copy(data[i]);
+                }
+                queue.add(new QueuedCall() {
+                    @Override
+                    public void send() {
+                        transport.transact(serviceNames, codes, copies, callback);
+                        recycle();
+                    }
+
+                    @Override
+                    public void fail() {
+                        recycle();
+                        int[] resultCodes = new int[codes.length];
+                        for (int i = 0; i < resultCodes.length; i++) {
+                            resultCodes[i] = Anycall.ERROR_TRANSACTION_FAILED;
+                        }
+                        callback.onReply(resultCodes, new Parcel[codes.length]);
+                    }
+
+                    private void recycle() {
+                        for (Parcel copy : copies) {
+                            copy.recycle();
+                        }
+                    }
+                });
+                return;
+            }
+        }
+        transport.transact(serviceNames, codes, data, callback);
+    }
+
+    @Override
+    public void transactOneway(final String serviceName, final int code, Parcel data) {
+        synchronized (lock) {
+            if (isHolding()) {
+                final Parcel copy = Parcels.copy(data);
+                queue.add(new QueuedCall() {
+                    @Override
+                    public void send() {
+                        transport.transactOneway(serviceName, code, copy);
+                        copy.recycle();
+                    }
+
+                    @Override
+                    public void fail() {
+                        copy.recycle();
+                    }
+                });
+                return;
+            }
+        }
+        transport.transactOneway(serviceName, code, data);
+    }
+
+    @Override
+    public void setDeathListener(@Nullable DeathListener listener) {
+        transport.setDeathListener(listener);
+    }
+
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        transport.getServiceCacheStats(callback);
+    }
+
+    private void onStarted(boolean success) {
+        synchronized (lock) {
+            // Stopped while starting
+            if (state != Anycall.STATE_STARTING) return;
+        }
+        finish(success ? Anycall.STATE_READY : Anycall.STATE_FAILED);
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private boolean isHolding() {
+        return state == Anycall.STATE_STARTING || flushing;
+    }
+
+    private void finish(int newState) {
+        boolean success = newState == Anycall.STATE_READY;
+        List<Anycall.StartShellListener> listeners;
+        List<QueuedCall> calls = null;
+        synchronized (lock) {
+            state = newState;
+            listeners = startListeners;
+            startListeners = new ArrayList<>();
+            // Otherwise the thread still sending the calls of an earlier start sends them
+            if (!success || !flushing) {
+                calls = queue;
+                queue = new ArrayList<>();
+            }
+            flushing = success;
+        }
+
+        if (!success) {
+            for (QueuedCall call : calls) {
+                call.fail();
+            }
+        } else if (calls != null) {
+            // Calls made meanwhile queue up behind and go in the next round
+            while (true) {
+                for (QueuedCall call : calls) {
+                    call.send();
+                }
+                synchronized (lock) {
+                    if (queue.isEmpty() || !flushing) {
+                        flushing = false;
+                        break;
+                    }
+                    calls = queue;
+                    queue = new ArrayList<>();
+                }
+            }
+        }
+
+        for (Anycall.StartShellListener listener : listeners) {
+            listener.onFinish(success);
+        }
+    }
+
+    private interface QueuedCall {
+        void send();
+
+        void fail();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where reply parcels handed to listeners come from and go back to.
+ * <p>
+ * Parcels are drawn from the platform pool. In debug builds every reply is tracked until it
+ * is recycled here: recycling one twice throws, and one collected without being recycled is
+ * logged with the stack trace of the call that obtained it.
+ */
+public final class ReplyParcels {
+    private static final String TAG = Anycall.TAG;
+
+    private static final ReferenceQueue<Parcel> collected = new ReferenceQueue<>();
+
+    private static final List<Owner> outstanding = new ArrayList<>();
+
+    private ReplyParcels() {
+    }
+
+    public static Parcel obtain() {
+        Parcel reply = Parcel.obtain();
+        if (BuildConfig.DEBUG) track(reply);
+        return reply;
+    }
+
+    /**
+     * @throws IllegalStateException In debug builds, if the reply was already recycled
+     */
+    public static void recycle(Parcel reply) {
+        if (BuildConfig.DEBUG) untrack(reply);
+        reply.recycle();
+    }
+
+    private static void track(Parcel reply) {
+        synchronized (outstanding) {
+            reportLeaks();
+            // Recycled directly with Parcel.recycle() and handed out again by the platform
+            remove(reply);
+            outstanding.add(new Owner(reply));
+        }
+    }
+
+    private static void untrack(Parcel reply) {
+        synchronized (outstanding) {
+            if (!remove(reply))
+                throw new IllegalStateException("Reply parcel recycled twice or not obtained from anycall");
+        }
+    }
+
+    private static boolean remove(Parcel reply) {
+        for (int i = outstanding.size() - 1; i >= 0; i--) {
+            if (outstanding.get(i).get() == reply) {
+                outstanding.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void reportLeaks() {
+        Owner owner;
+        while ((owner = (Owner) collected.poll()) != null) {
+            if (outstanding.remove(owner))
+                Log.w(TAG, "Reply parcel leaked, listeners keeping one must pass it to Anycall.recycleReply", owner.obtainedAt);
+        }
+    }
+
+    private static class Owner extends WeakReference<Parcel> {
+        final Throwable obtainedAt = new Throwable("Reply obtained here");
+
+        Owner(Parcel reply) {
+            super(reply, collected);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the marshalled replies of read-only methods for a short time, keyed by service,
+ * transaction code and marshalled data, and lets identical calls in flight share one
+ * transaction. Only methods given a time to live take part.
+ * <p>
+ * Entries are evicted least recently used first once their replies exceed the size limit.
+ */
+class ResultCache {
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private final int maxBytes;
+
+    private final Map<String, Map<Integer, Long>> ttls = new HashMap<>();
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<Key, InFlight> inFlight = new HashMap<>();
+
+    private int bytes;
+
+    /**
+     * Bumped by {@link #clear()}, the replies of calls sent before are not cached.
+     */
+    private int generation;
+
+    private volatile boolean enabled;
+
+    ResultCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param ttlNanos 0 to stop caching the method
+     */
+    synchronized void setTtl(String serviceName, int code, long ttlNanos) {
+        Map<Integer, Long> codes = ttls.get(serviceName);
+        if (ttlNanos > 0) {
+            if (codes == null) {
+                codes = new HashMap<>();
+                ttls.put(serviceName, codes);
+            }
+            codes.put(code, ttlNanos);
+        } else if (codes != null) {
+            codes.remove(code);
+            if (codes.isEmpty()) ttls.remove(serviceName);
+        }
+        enabled = !ttls.isEmpty();
+    }
+
+    /**
+     * @return The time to live of the replies of the method, 0 if it is not cached
+     */
+    long getTtl(String serviceName, int code) {
+        if (!enabled) return 0;
+        synchronized (this) {
+            Map<Integer, Long> codes = ttls.get(serviceName);
+            Long ttl = codes == null ? null : codes.get(code);
+            return ttl == null ? 0 : ttl;
+        }
+    }
+
+    /**
+     * @return The cached reply, null if there is none or it has expired
+     */
+    synchronized byte[] get(Key key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (now - entry.expiresAt >= 0) {
+            remove(key);
+            return null;
+        }
+        return entry.reply;
+    }
+
+    /**
+     * Waits for an identical call in flight, or marks this one as in flight.
+     *
+     * @return True if the listener joined a call in flight, false if the caller must send it
+     * and then call {@link #complete(Key, boolean, byte[], long)}
+     */
+    synchronized boolean join(Key key, Anycall.CallMethodResultListener listener) {
+        InFlight call = inFlight.get(key);
+        boolean joined = call != null;
+        if (!joined) {
+            call = new InFlight(generation);
+            inFlight.put(key, call);
+        }
+        call.listeners.add(listener);
+        return joined;
+    }
+
+    /**
+     * @param reply Kept until {@code expiresAt} if the call succeeded and the cache was not
+     *              cleared since it was sent
+     * @return The listeners waiting for the call, in order
+     */
+    synchronized List<Anycall.CallMethodResultListener> complete(Key key, boolean success,
+                                                                 byte[] reply, long expiresAt) {
+        InFlight call = inFlight.remove(key);
+        if (success && reply != null && reply.length <= maxBytes
+                && call != null && call.generation == generation) {
+            remove(key);
+            entries.put(key, new Entry(reply, expiresAt));
+            bytes += reply.length;
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().reply.length;
+                eldest.remove();
+            }
+        }
+        return call == null ? null : call.listeners;
+    }
+
+    /**
+     * Drops all entries. Calls in flight still share their reply, but it is not cached.
+     */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) bytes -= entry.reply.length;
+    }
+
+    static final class Key {
+        private final String serviceName;
+
+        private final int code;
+
+        private final byte[] data;
+
+        private final int hashCode;
+
+        Key(String serviceName, int code, byte[] data) {
+            this.serviceName = serviceName;
+            this.code = code;
+            this.data = data;
+            hashCode = (serviceName.hashCode() * 31 + code) * 31 + Arrays.hashCode(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return code == key.code && serviceName.equals(key.serviceName) && Arrays.equals(data, key.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class InFlight {
+        final List<Anycall.CallMethodResultListener> listeners = new ArrayList<>(1);
+
+        final int generation;
+
+        InFlight(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] reply;
+
+        final long expiresAt;
+
+        Entry(byte[] reply, long expiresAt) {
+            this.reply = reply;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
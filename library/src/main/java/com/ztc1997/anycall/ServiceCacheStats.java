@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+/**
+ * Counters of the service binder cache kept by the root helper.
+ *
+ * @see Anycall#getServiceCacheStats()
+ */
+public class ServiceCacheStats {
+    /**
+     * Calls that found their service binder in the cache.
+     */
+    public final long hits;
+
+    /**
+     * Calls that had to look their service up in the service manager.
+     */
+    public final long misses;
+
+    /**
+     * The number of service binders currently cached.
+     */
+    public final int size;
+
+    public ServiceCacheStats(long hits, long misses, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.size = size;
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceCacheStats{hits=" + hits + ", misses=" + misses + ", size=" + size + "}";
+    }
+}
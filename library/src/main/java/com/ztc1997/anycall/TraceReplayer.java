@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.ztc1997.anycall.protocol.TraceReader;
+import com.ztc1997.anycall.protocol.TraceRecord;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Issues the calls of a trace recorded with {@link Anycall#startTrace(File, boolean)} again
+ * and measures how long they take now.
+ */
+public final class TraceReplayer {
+
+    private TraceReplayer() {
+    }
+
+    /**
+     * Makes every call of the trace at the time it was originally made, scaled by
+     * {@code speed}, and waits for all replies. Methods are looked up by their names, so a
+     * trace can be replayed on other devices. Calls whose data was not recorded are skipped.
+     * Oneway calls are sent oneway again and are not part of the latencies.
+     * Never call it on the thread listeners run on, see
+     * {@link Anycall#setCallbackExecutor(java.util.concurrent.Executor)}.
+     *
+     * @param speed 1 for the original pace, 10 for ten times faster, 0 to make the calls
+     *              back to back
+     * @param timeout How long to wait for the replies once all calls are made
+     */
+    @WorkerThread
+    public static Report replay(@NonNull Anycall anycall, @NonNull File trace, double speed,
+                                long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        List<TraceRecord> records;
+        TraceReader reader = new TraceReader(new FileInputStream(trace));
+        try {
+            records = reader.readAll();
+        } finally {
+            reader.close();
+        }
+
+        // Created up front, the listeners only look them up
+        LatencyHistogram recorded = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        Map<String, LatencyHistogram> methods = new HashMap<>();
+        int calls = 0;
+        int oneway = 0;
+        int skipped = 0;
+        for (TraceRecord record : records) {
+            if (record.data == null) {
+                skipped++;
+                continue;
+            }
+            if (record.oneway) {
+                oneway++;
+                continue;
+            }
+            calls++;
+            recorded.record(record.durationNanos);
+            String key = key(record);
+            if (!methods.containsKey(key)) methods.put(key, new LatencyHistogram());
+        }
+
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch remaining = new CountDownLatch(calls);
+        long replayStart = System.nanoTime();
+        for (TraceRecord record : records) {
+            if (record.data == null) continue;
+
+            if (speed > 0) {
+                long wait = replayStart + (long) (record.startNanos / speed) - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+
+            Parcel data = Parcel.obtain();
+            data.unmarshall(record.data, 0, record.data.length);
+            data.setDataPosition(0);
+            if (record.oneway) {
+                anycall.callMethodOneway(record.className, record.serviceName, record.methodName, data);
+                data.recycle();
+                continue;
+            }
+
+            final LatencyHistogram method = methods.get(key(record));
+            final long start = System.nanoTime();
+            anycall.callMethod(record.className, record.serviceName, record.methodName, data,
+                    new Anycall.CallMethodResultListener() {
+                        @Override
+                        public boolean onResult(int resultCode, @Nullable Parcel reply) {
+                            long elapsed = System.nanoTime() - start;
+                            total.record(elapsed);
+                            method.record(elapsed);
+                            if (resultCode != 0) errors.incrementAndGet();
+                            remaining.countDown();
+                            return true;
+                        }
+                    });
+            data.recycle();
+        }
+        remaining.await(timeout, unit);
+
+        Map<String, LatencySnapshot> snapshots = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : methods.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Report(total.snapshot(), recorded.snapshot(), Collections.unmodifiableMap(snapshots),
+                calls, oneway, errors.get(), skipped, remaining.getCount());
+    }
+
+    private static String key(TraceRecord record) {
+        return record.className + "." + record.methodName;
+    }
+
+    public static final class Report {
+
+        /**
+         * The latencies of all replayed calls.
+         */
+        public final LatencySnapshot latency;
+
+        /**
+         * The latencies the replayed calls had when they were recorded.
+         */
+        public final LatencySnapshot recorded;
+
+        /**
+         * The latencies per method, keyed by interface and method name, e.g.
+         * {@code android.os.IPowerManager.goToSleep}.
+         */
+        public final Map<String, LatencySnapshot> methods;
+
+        public final int calls;
+
+        /**
+         * The number of oneway calls sent, not counted in {@link #calls}.
+         */
+        public final int oneway;
+
+        /**
+         * The number of calls that completed with a result code other than 0.
+         */
+        public final int errors;
+
+        /**
+         * The number of calls not replayed because their data was not recorded.
+         */
+        public final int skipped;
+
+        /**
+         * The number of calls still in flight when the timeout expired.
+         */
+        public final long unfinished;
+
+        Report(LatencySnapshot latency, LatencySnapshot recorded, Map<String, LatencySnapshot> methods,
+               int calls, int oneway, int errors, int skipped, long unfinished) {
+            this.latency = latency;
+            this.recorded = recorded;
+            this.methods = methods;
+            this.calls = calls;
+            this.oneway = oneway;
+            this.errors = errors;
+            this.skipped = skipped;
+            this.unfinished = unfinished;
+        }
+
+        @Override
+        public String toString() {
+            return "calls = " + calls + ", oneway = " + oneway + ", errors = " + errors
+                    + ", skipped = " + skipped + ", unfinished = " + unfinished + ", latency: " + latency + ", recorded: " + recorded;
+        }
+    }
+}
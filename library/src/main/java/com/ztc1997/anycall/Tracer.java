@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.ztc1997.anycall.protocol.TraceRecord;
+import com.ztc1997.anycall.protocol.TraceWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Records the calls made through an {@link Anycall} into a trace file, which is flushed every
+ * second so a crash loses little of it.
+ */
+class Tracer {
+    private static final String TAG = Anycall.TAG;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final TraceWriter writer;
+
+    private final boolean withReplies;
+
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Set once the trace is closed or cannot be written anymore.
+     */
+    private volatile boolean done;
+
+    private final Timer flusher = new Timer("anycall-trace", true);
+
+    Tracer(File file, boolean withReplies) throws IOException {
+        writer = new TraceWriter(new FileOutputStream(file));
+        this.withReplies = withReplies;
+        flusher.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Captures the data now, the caller may recycle it once the call is made, and records
+     * the call when its reply arrives.
+     */
+    Anycall.CallMethodResultListener wrap(final String className, final String methodName,
+                                          final String serviceName, final int code, Parcel data,
+                                          @Nullable final Anycall.CallMethodResultListener listener) {
+        final long start = System.nanoTime();
+        final byte[] dataBytes = marshall(data);
+
+        return new Anycall.CallMethodResultListener() {
+            @Override
+            public boolean onResult(int resultCode, @Nullable Parcel reply) {
+                long duration = System.nanoTime() - start;
+                byte[] replyBytes = withReplies && reply != null ? marshall(reply) : null;
+                write(new TraceRecord(start - startNanos, duration, className, serviceName,
+                        methodName, code, resultCode, dataBytes, replyBytes));
+                return listener == null || listener.onResult(resultCode, reply);
+            }
+        };
+    }
+
+    /**
+     * Captures the data of the sent calls of a batch now, and records each of them as a call
+     * of its own with the duration of the whole batch when the replies arrive.
+     *
+     * @param indexes The positions in {@code calls} of the calls that were sent
+     * @param codes   The transaction codes of the calls that were sent
+     */
+    Transport.BatchReplyCallback wrap(List<MethodCall> calls, int[] indexes, final int[] codes,
+                                      int count, final Transport.BatchReplyCallback callback) {
+        final long start = System.nanoTime();
+        final MethodCall[] sent = new MethodCall[count];
+        final byte[][] dataBytes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            sent[i] = calls.get(indexes[i]);
+            dataBytes[i] = marshall(sent[i].data);
+        }
+
+        return new Transport.BatchReplyCallback() {
+            @Override
+            public void onReply(int[] resultCodes, Parcel[] replies) {
+                long duration = System.nanoTime() - start;
+                for (int i = 0; i < resultCodes.length; i++) {
+                    byte[] replyBytes = withReplies && replies[i] != null ? marshall(replies[i]) : null;
+                    write(new TraceRecord(start - startNanos, duration, sent[i].className,
+                            sent[i].serviceName, sent[i].methodName, codes[i], resultCodes[i],
+                            dataBytes[i], replyBytes));
+                }
+                callback.onReply(resultCodes, replies);
+            }
+        };
+    }
+
+    void recordOneway(BinderMethod method, Parcel data) {
+        write(new TraceRecord(System.nanoTime() - startNanos, method.className, method.serviceName,
+                method.methodName, method.transactionCode, marshall(data)));
+    }
+
+    void close() {
+        done = true;
+        flusher.cancel();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private void write(TraceRecord record) {
+        if (done) return;
+        try {
+            writer.write(record);
+        } catch (IOException e) {
+            // Most likely out of space or stopped, the trace ends here
+            done = true;
+            Log.w(TAG, e);
+        }
+    }
+
+    private void flush() {
+        if (done) return;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            done = true;
+            Log.w(TAG, e);
+        }
+    }
+
+    /**
+     * @return Null if the parcel holds binders or file descriptors, which cannot be marshalled
+     */
+    @Nullable
+    private static byte[] marshall(Parcel parcel) {
+        try {
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
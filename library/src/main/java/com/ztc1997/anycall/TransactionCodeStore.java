@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists resolved transaction codes, so a fresh process can call without reflection.
+ * <p>
+ * The file starts with the build fingerprint and SDK version it was written on and is
+ * ignored on any other build, since an OTA may renumber the transactions. Layout:
+ * <pre>
+ * int32   magic
+ * int32   format version
+ * string  build fingerprint
+ * int32   SDK version
+ * int32   interface count, then per interface:
+ *         string  interface name
+ *         int32   method count, then per method:
+ *                 string  method name
+ *                 int32   transaction code
+ * </pre>
+ * Strings are an int16 length followed by UTF-8 bytes, integers are big-endian.
+ */
+class TransactionCodeStore {
+    private static final int MAGIC = 0x41435443; // ACTC
+
+    private static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    private final String fingerprint;
+
+    private final int sdk;
+
+    TransactionCodeStore(File file, String fingerprint, int sdk) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        this.sdk = sdk;
+    }
+
+    /**
+     * Maps the file and reads every table from it.
+     *
+     * @return Empty if the file is missing, corrupt or written on another build
+     */
+    Map<String, TransactionCodes.Table> load() {
+        Map<String, TransactionCodes.Table> tables = new HashMap<>();
+        if (!file.exists()) return tables;
+
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return tables;
+            if (!fingerprint.equals(readString(buffer)) || buffer.getInt() != sdk) return tables;
+
+            int interfaceCount = buffer.getInt();
+            for (int i = 0; i < interfaceCount; i++) {
+                String className = readString(buffer);
+                int methodCount = buffer.getInt();
+                if (methodCount < 0 || methodCount > buffer.remaining()) throw new IOException("Corrupt file");
+
+                String[] methods = new String[methodCount];
+                int[] codes = new int[methodCount];
+                for (int j = 0; j < methodCount; j++) {
+                    methods[j] = readString(buffer);
+                    codes[j] = buffer.getInt();
+                }
+                tables.put(className, new TransactionCodes.Table(methods, codes));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tables.clear();
+        } catch (BufferUnderflowException e) {
+            e.printStackTrace();
+            tables.clear();
+        } finally {
+            if (fis != null) try {
+                fis.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Writes the tables to a temporary file and renames it over the old one, so readers
+     * never see a partial file.
+     */
+    boolean save(Map<String, TransactionCodes.Table> tables) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fingerprint);
+            out.writeInt(sdk);
+
+            int count = 0;
+            for (TransactionCodes.Table table : tables.values()) {
+                if (table.size() > 0) count++;
+            }
+            out.writeInt(count);
+            for (Map.Entry<String, TransactionCodes.Table> entry : tables.entrySet()) {
+                TransactionCodes.Table table = entry.getValue();
+                if (table.size() == 0) continue;
+
+                writeString(out, entry.getKey());
+                out.writeInt(table.size());
+                for (int i = 0; i < table.size(); i++) {
+                    writeString(out, table.methods[i]);
+                    out.writeInt(table.codes[i]);
+                }
+            }
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort();
+        if (length < 0 || length > buffer.remaining()) throw new IOException("Corrupt file");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
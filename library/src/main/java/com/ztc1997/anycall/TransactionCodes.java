@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolves transaction codes from the {@code TRANSACTION_*} fields of AIDL stubs.
+ * <p>
+ * A stub is scanned once on its first lookup and all of its codes are indexed, so later
+ * lookups of any method of the interface are a binary search without reflection or
+ * allocation. With a {@link TransactionCodeStore}, the tables outlive the process.
+ */
+class TransactionCodes {
+    static final int NOT_FOUND = -1;
+
+    private static final String FIELD_PREFIX = "TRANSACTION_";
+
+    private final LruCache<String, Table> tables;
+
+    @Nullable
+    private final TransactionCodeStore store;
+
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    /**
+     * @param maxSize The maximum number of codes kept, over all interfaces
+     * @param store   Loaded now and updated whenever a new stub is scanned, may be null
+     */
+    TransactionCodes(int maxSize, @Nullable TransactionCodeStore store) {
+        tables = new LruCache<String, Table>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Table value) {
+                return Math.max(1, value.size());
+            }
+        };
+
+        this.store = store;
+        if (store != null) {
+            for (Map.Entry<String, Table> entry : store.load().entrySet()) {
+                tables.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param className The interface name, e.g. {@code android.os.IPowerManager}
+     * @return The transaction code or {@link #NOT_FOUND}
+     */
+    int get(String className, String methodName) {
+        Table table = tables.get(className);
+        if (table == null) {
+            table = scan(className);
+            tables.put(className, table);
+            if (table.size() > 0) scheduleSave();
+        }
+        return table.get(methodName);
+    }
+
+    private void scheduleSave() {
+        if (store == null || !saveScheduled.compareAndSet(false, true)) return;
+
+        new Thread("anycall-codes") {
+            @Override
+            public void run() {
+                // Stubs scanned from now on schedule another save
+                saveScheduled.set(false);
+                synchronized (store) {
+                    store.save(tables.snapshot());
+                }
+            }
+        }.start();
+    }
+
+    private static Table scan(String className) {
+        try {
+            Class<?> cls = Class.forName(className + "$Stub");
+            Field[] fields = cls.getDeclaredFields();
+            String[] methods = new String[fields.length];
+            int count = 0;
+            for (Field field : fields) {
+                if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())
+                        && field.getName().startsWith(FIELD_PREFIX))
+                    methods[count++] = field.getName().substring(FIELD_PREFIX.length());
+            }
+            Arrays.sort(methods, 0, count);
+
+            int[] codes = new int[count];
+            for (int i = 0; i < count; i++) {
+                Field field = cls.getDeclaredField(FIELD_PREFIX + methods[i]);
+                field.setAccessible(true);
+                codes[i] = field.getInt(null);
+            }
+            return new Table(Arrays.copyOf(methods, count), codes);
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        } catch (NoSuchFieldException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        // Remember the failure, the stub will not appear later
+        return new Table(new String[0], new int[0]);
+    }
+
+    /**
+     * The transaction codes of one interface, sorted by method name.
+     */
+    static class Table {
+        final String[] methods;
+
+        final int[] codes;
+
+        Table(String[] methods, int[] codes) {
+            this.methods = methods;
+            this.codes = codes;
+        }
+
+        int size() {
+            return codes.length;
+        }
+
+        int get(String methodName) {
+            int index = Arrays.binarySearch(methods, methodName);
+            return index >= 0 ? codes[index] : NOT_FOUND;
+        }
+    }
+}
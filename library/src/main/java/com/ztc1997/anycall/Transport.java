@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+/**
+ * Carries marshalled transactions to the root side and brings the replies back.
+ * <p>
+ * Callbacks are called on whatever thread the transport completes the call on, already
+ * decoded, {@link Anycall} then hands them to the callback executor.
+ * <p>
+ * Implement it to run {@link Anycall} against something other than a root shell, see
+ * {@link Anycall#Anycall(int, Factory)}. Replies must come from {@link ReplyParcels#obtain()}.
+ */
+public interface Transport {
+
+    boolean isRunning();
+
+    void start(@Nullable Anycall.StartShellListener listener);
+
+    void stop();
+
+    /**
+     * @param serviceName The name the service is registered with in the service manager
+     * @param code        The transaction code
+     * @param data        The data parcel, consumed before this method returns
+     * @param callback    Receives the reply parcel
+     */
+    void transact(String serviceName, int code, Parcel data, ReplyCallback callback);
+
+    /**
+     * Sends the calls as one unit, the root side executes them back-to-back.
+     *
+     * @param data     The data parcels, consumed before this method returns
+     * @param callback Receives all replies together
+     */
+    void transact(String[] serviceNames, int[] codes, Parcel[] data, BatchReplyCallback callback);
+
+    /**
+     * Sends a call with {@code FLAG_ONEWAY} and forgets about it. Calls are executed in the
+     * order they were made, except those large enough to be streamed, and a failure is only
+     * logged.
+     *
+     * @param data The data parcel, consumed before this method returns
+     */
+    void transactOneway(String serviceName, int code, Parcel data);
+
+    /**
+     * Queries the service binder cache of the root side.
+     */
+    void getServiceCacheStats(StatsCallback callback);
+
+    /**
+     * @param listener Told when the transport stops running without {@link #stop()}, at most
+     *                 once per start. Calls in flight then fail with
+     *                 {@link Anycall#ERROR_SESSION_DIED}.
+     */
+    void setDeathListener(@Nullable DeathListener listener);
+
+    interface ReplyCallback {
+
+        /**
+         * @param resultCode Equals 0 when success, or indicates an error
+         * @param reply      The reply parcel positioned at 0, null if resultCode is not 0.
+         *                   The callback owns it and must pass it to {@link ReplyParcels#recycle(Parcel)}.
+         */
+        void onReply(int resultCode, @Nullable Parcel reply);
+    }
+
+    interface BatchReplyCallback {
+
+        /**
+         * @param resultCodes One per call, in order
+         * @param replies     One per call, null where the result code is not 0.
+         *                    The callback owns them and must pass them to
+         *                    {@link ReplyParcels#recycle(Parcel)}.
+         */
+        void onReply(int[] resultCodes, Parcel[] replies);
+    }
+
+    interface StatsCallback {
+
+        /**
+         * @param stats Null if the transport keeps no cache or is not running
+         */
+        void onStats(@Nullable ServiceCacheStats stats);
+    }
+
+    interface DeathListener {
+
+        /**
+         * Called on an arbitrary thread, {@link #isRunning()} already returns false.
+         */
+        void onDied();
+    }
+
+    interface Factory {
+        Transport create();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A group of calls, or of their replies, carried as the payload of a single frame.
+ * <p>
+ * Encoded as an int32 entry count followed by, for each entry:
+ * <pre>
+ * int16   length of the service name, followed by its UTF-8 bytes
+ * int32   code, the transaction code of a call or the result code of a reply
+ * int32   length of the payload or -1 if there is none, followed by its bytes
+ * </pre>
+ * A decoded batch does not copy the payloads, they are ranges of the decoded buffer.
+ */
+public class Batch {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * The service names of the calls, null entries for replies.
+     */
+    public final String[] services;
+
+    public final int[] codes;
+
+    /**
+     * The arrays holding the marshalled parcels, null where there is none.
+     */
+    public final byte[][] payloads;
+
+    public final int[] offsets;
+
+    public final int[] lengths;
+
+    private byte[][] serviceBytes;
+
+    public Batch(int size) {
+        services = new String[size];
+        codes = new int[size];
+        payloads = new byte[size][];
+        offsets = new int[size];
+        lengths = new int[size];
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * @param payload The whole array is the payload, may be null
+     */
+    public void set(int index, String service, int code, byte[] payload) {
+        services[index] = service;
+        codes[index] = code;
+        payloads[index] = payload;
+        offsets[index] = 0;
+        lengths[index] = payload == null ? 0 : payload.length;
+    }
+
+    public int encodedLength() {
+        if (serviceBytes == null) {
+            serviceBytes = new byte[size()][];
+            for (int i = 0; i < size(); i++) {
+                serviceBytes[i] = services[i] == null ? EMPTY : services[i].getBytes(UTF_8);
+            }
+        }
+
+        int length = 4;
+        for (int i = 0; i < size(); i++) {
+            length += 2 + serviceBytes[i].length + 4 + 4;
+            if (payloads[i] != null) length += lengths[i];
+        }
+        return length;
+    }
+
+    /**
+     * @param out At least {@link #encodedLength()} bytes, for example from a {@link BufferPool}
+     * @return The number of bytes written from offset 0
+     */
+    public int encode(byte[] out) {
+        int length = encodedLength();
+        ByteBuffer buffer = ByteBuffer.wrap(out, 0, length);
+        buffer.putInt(size());
+        for (int i = 0; i < size(); i++) {
+            buffer.putShort((short) serviceBytes[i].length);
+            buffer.put(serviceBytes[i]);
+            buffer.putInt(codes[i]);
+            if (payloads[i] == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(lengths[i]);
+                buffer.put(payloads[i], offsets[i], lengths[i]);
+            }
+        }
+        return length;
+    }
+
+    public byte[] encode() {
+        byte[] out = new byte[encodedLength()];
+        encode(out);
+        return out;
+    }
+
+    /**
+     * @param buffer Referenced by the payloads of the batch, must not change while it is used
+     * @throws IOException If the data is not a valid batch
+     */
+    public static Batch decode(byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+        try {
+            int size = in.getInt();
+            // Every entry takes at least 10 bytes
+            if (size < 0 || size > length / 10)
+                throw new IOException("Invalid batch size " + size);
+
+            Batch batch = new Batch(size);
+            for (int i = 0; i < size; i++) {
+                int serviceLength = in.getShort();
+                if (serviceLength < 0 || serviceLength > in.remaining())
+                    throw new IOException("Invalid service name length " + serviceLength);
+                if (serviceLength > 0) {
+                    batch.services[i] = new String(buffer, in.position(), serviceLength, UTF_8);
+                    in.position(in.position() + serviceLength);
+                }
+                batch.codes[i] = in.getInt();
+                int payloadLength = in.getInt();
+                if (payloadLength > in.remaining())
+                    throw new IOException("Invalid payload length " + payloadLength);
+                if (payloadLength >= 0) {
+                    batch.payloads[i] = buffer;
+                    batch.offsets[i] = in.position();
+                    batch.lengths[i] = payloadLength;
+                    in.position(in.position() + payloadLength);
+                }
+            }
+            return batch;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated batch", e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of byte arrays for encoding and decoding frames.
+ * <p>
+ * Arrays come in power of two sizes from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Each size
+ * keeps a few slots that threads pick starting from their own, so concurrent callers rarely
+ * touch the same slot. Larger arrays are allocated and dropped as usual.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 4096;
+
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    private static final int MIN_SHIFT = 12;
+
+    private static final int CLASSES = 9;
+
+    private static final int SLOTS = 4;
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final AtomicReferenceArray<byte[]> slots =
+            new AtomicReferenceArray<>(CLASSES * SLOTS);
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return An array of at least {@code size} bytes, with arbitrary content
+     */
+    public byte[] acquire(int size) {
+        if (size > MAX_SIZE) return new byte[size];
+
+        int sizeClass = sizeClass(size);
+        int base = sizeClass * SLOTS;
+        int start = stripe();
+        for (int i = 0; i < SLOTS; i++) {
+            byte[] buffer = slots.getAndSet(base + (start + i) % SLOTS, null);
+            if (buffer != null) return buffer;
+        }
+        return new byte[MIN_SIZE << sizeClass];
+    }
+
+    /**
+     * Returns an array obtained from {@link #acquire(int)}, it must not be used afterwards.
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) return;
+
+        int base = sizeClass(length) * SLOTS;
+        int start = stripe();
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots.compareAndSet(base + (start + i) % SLOTS, null, buffer)) return;
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() % SLOTS);
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client end of the protocol. Requests are written by the calling threads and replies are
+ * matched to them by request id on the thread running {@link #run()}, so any number of
+ * requests may be in flight and complete in any order.
+ * <p>
+ * The channel only deals in frames, it works with the root helper as well as with anything
+ * else answering them, e.g. a stand-in server for load tests.
+ */
+public class FrameChannel {
+    private static final String TAG = FrameChannel.class.getSimpleName();
+
+    private final FrameCodec codec;
+
+    private final DataInputStream bulkIn;
+
+    private final int failureCode;
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final Object lock = new Object();
+
+    private int[] pendingIds = new int[16];
+
+    private ReplyHandler[] pendingHandlers = new ReplyHandler[16];
+
+    private int pendingCount;
+
+    private boolean open = true;
+
+    /**
+     * Streamed replies waiting for their payload from the bulk stream.
+     */
+    private final BlockingQueue<BulkReply> bulkReplies = new LinkedBlockingQueue<>();
+
+    private static final BulkReply END_OF_BULK = new BulkReply(null, 0, 0);
+
+    /**
+     * @param bulkIn      Where the payloads of {@link FrameCodec#TYPE_STREAM_REPLY} replies are
+     *                    read from, may be null if the server never streams
+     * @param failureCode The result code requests fail with once the channel is closed
+     */
+    public FrameChannel(FrameCodec codec, InputStream bulkIn, int failureCode) {
+        this.codec = codec;
+        this.bulkIn = bulkIn == null ? null : new DataInputStream(bulkIn);
+        this.failureCode = failureCode;
+    }
+
+    /**
+     * Round trips a ping, must be called before {@link #run()}.
+     *
+     * @return The code of the reply, the capabilities of the server
+     * @throws IOException If the server does not answer properly
+     */
+    public int ping() throws IOException {
+        int id = nextId();
+        codec.write(id, FrameCodec.TYPE_PING, 0, null, null);
+        if (!codec.read() || codec.getType() != FrameCodec.TYPE_REPLY || codec.getId() != id)
+            throw new IOException("No reply to ping");
+        return codec.getCode();
+    }
+
+    /**
+     * Writes a request. If the write fails, the request fails once {@link #run()} notices the
+     * broken stream.
+     *
+     * @param payload Not used anymore once this method returns, may be null
+     * @param handler Called once with the reply
+     * @return The request id, 0 if the channel is closed, the handler is then not called
+     */
+    public int send(byte type, int code, String service, byte[] payload, int payloadLength,
+                    ReplyHandler handler) {
+        int id = nextId();
+        synchronized (lock) {
+            if (!open) return 0;
+            // Only after a wrap around, by a request that has waited for two billion others
+            while (Arrays.binarySearch(pendingIds, 0, pendingCount, id) >= 0) id = nextId();
+            put(id, handler);
+        }
+
+        try {
+            codec.write(id, type, code, service, payload, payloadLength);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return id;
+    }
+
+    /**
+     * Forgets a request, for a caller that no longer waits for it. Its handler is not called,
+     * and the reply is dropped if it still arrives.
+     *
+     * @param id As returned by {@link #send(byte, int, String, byte[], int, ReplyHandler)}
+     * @return False if the reply has arrived or the request has failed already
+     */
+    public boolean cancel(int id) {
+        synchronized (lock) {
+            return remove(id) != null;
+        }
+    }
+
+    /**
+     * Writes a request the server does not answer.
+     *
+     * @return False if the channel is closed
+     */
+    public boolean sendOneway(byte type, int code, String service, byte[] payload, int payloadLength) {
+        synchronized (lock) {
+            if (!open) return false;
+        }
+
+        try {
+            codec.write(0, type, code, service, payload, payloadLength);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads replies until the stream ends, then fails the requests still pending.
+     *
+     * @throws IOException If the stream breaks
+     */
+    public void run() throws IOException {
+        Thread bulkReader = null;
+        if (bulkIn != null) {
+            bulkReader = new Thread("frame-bulk") {
+                @Override
+                public void run() {
+                    readBulk();
+                }
+            };
+            bulkReader.start();
+        }
+
+        try {
+            while (codec.read()) {
+                dispatch();
+            }
+        } finally {
+            close();
+            failPending();
+            if (bulkReader != null) {
+                bulkReplies.add(END_OF_BULK);
+                joinUninterruptibly(bulkReader);
+            }
+        }
+    }
+
+    /**
+     * Closes the streams, {@link #run()} then returns and fails the pending requests.
+     */
+    public void close() {
+        synchronized (lock) {
+            open = false;
+        }
+        try {
+            codec.close();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    /**
+     * @return False once the channel is closed, before the pending requests fail
+     */
+    public boolean isOpen() {
+        synchronized (lock) {
+            return open;
+        }
+    }
+
+    /**
+     * Lets tests get close to the wrap around of the request ids.
+     */
+    void setNextId(int id) {
+        nextId.set(id);
+    }
+
+    /**
+     * @return The number of requests waiting for their reply
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pendingCount;
+        }
+    }
+
+    /**
+     * @return A request id above 0. Once the counter wraps around, it starts over at 1, since
+     * 0 marks oneway requests.
+     */
+    private int nextId() {
+        while (true) {
+            int id = nextId.getAndIncrement();
+            if (id > 0) return id;
+            // Unless another thread has started over already
+            nextId.compareAndSet(id + 1, 1);
+        }
+    }
+
+    private void dispatch() throws IOException {
+        byte type = codec.getType();
+        if (type != FrameCodec.TYPE_REPLY && type != FrameCodec.TYPE_STREAM_REPLY) return;
+
+        ReplyHandler handler;
+        synchronized (lock) {
+            handler = remove(codec.getId());
+        }
+
+        if (type == FrameCodec.TYPE_REPLY) {
+            if (handler != null) handler.onReply(codec.getCode(), codec.getPayload(), codec.getPayloadLength());
+            return;
+        }
+
+        // The payload follows in the bulk stream and must be consumed even if nobody waits for
+        // it. It is read on another thread, so a large one does not hold up the frames behind it.
+        if (bulkIn == null || codec.getPayloadLength() < 4) throw new IOException("Unexpected stream reply");
+        int length = ByteBuffer.wrap(codec.getPayload(), 0, 4).getInt();
+        bulkReplies.add(new BulkReply(handler, codec.getCode(), length));
+    }
+
+    /**
+     * Reads the payloads of streamed replies in the order of their frames, which is the order
+     * the server writes them in. Once the bulk stream breaks, the remaining replies fail.
+     */
+    private void readBulk() {
+        boolean broken = false;
+        while (true) {
+            BulkReply reply;
+            try {
+                reply = bulkReplies.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (reply == END_OF_BULK) return;
+
+            if (!broken) {
+                byte[] payload = BufferPool.shared().acquire(reply.length);
+                try {
+                    bulkIn.readFully(payload, 0, reply.length);
+                    if (reply.handler != null) reply.handler.onReply(reply.code, payload, reply.length);
+                    continue;
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                    broken = true;
+                } finally {
+                    BufferPool.shared().release(payload);
+                }
+            }
+            if (reply.handler != null) reply.handler.onReply(failureCode, null, 0);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void failPending() {
+        ReplyHandler[] failed;
+        synchronized (lock) {
+            failed = Arrays.copyOf(pendingHandlers, pendingCount);
+            Arrays.fill(pendingHandlers, null);
+            pendingCount = 0;
+        }
+        for (ReplyHandler handler : failed) {
+            handler.onReply(failureCode, null, 0);
+        }
+    }
+
+    /**
+     * Ids grow, so pending requests stay sorted by appending.
+     */
+    private void put(int id, ReplyHandler handler) {
+        if (pendingCount == pendingIds.length) {
+            pendingIds = Arrays.copyOf(pendingIds, pendingCount * 2);
+            pendingHandlers = Arrays.copyOf(pendingHandlers, pendingCount * 2);
+        }
+        int index = pendingCount;
+        // A thread may be preempted between taking its id and getting here
+        while (index > 0 && pendingIds[index - 1] > id) index--;
+        System.arraycopy(pendingIds, index, pendingIds, index + 1, pendingCount - index);
+        System.arraycopy(pendingHandlers, index, pendingHandlers, index + 1, pendingCount - index);
+        pendingIds[index] = id;
+        pendingHandlers[index] = handler;
+        pendingCount++;
+    }
+
+    private ReplyHandler remove(int id) {
+        int index = Arrays.binarySearch(pendingIds, 0, pendingCount, id);
+        if (index < 0) return null;
+
+        ReplyHandler handler = pendingHandlers[index];
+        System.arraycopy(pendingIds, index + 1, pendingIds, index, pendingCount - index - 1);
+        System.arraycopy(pendingHandlers, index + 1, pendingHandlers, index, pendingCount - index - 1);
+        pendingHandlers[--pendingCount] = null;
+        return handler;
+    }
+
+    public interface ReplyHandler {
+
+        /**
+         * Called on the thread running {@link FrameChannel#run()}, or on the channel's bulk
+         * reader thread for {@link FrameCodec#TYPE_STREAM_REPLY} replies.
+         *
+         * @param payload Holds the reply from offset 0 and is only valid until this method
+         *                returns, null if the request failed before reaching the server
+         */
+        void onReply(int resultCode, byte[] payload, int payloadLength);
+    }
+
+    private static class BulkReply {
+        final ReplyHandler handler;
+        final int code;
+        final int length;
+
+        BulkReply(ReplyHandler handler, int code, int length) {
+            this.handler = handler;
+            this.code = code;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads and writes the length-prefixed binary frames exchanged with the root helper.
+ * <p>
+ * Every frame is laid out as:
+ * <pre>
+ * int32   length of everything below
+ * int32   request id
+ * int8    type
+ * int32   code, the transaction code of a call or the result code of a reply
+ * int16   length of the service name, followed by its UTF-8 bytes
+ * byte[]  payload, the marshalled parcel
+ * </pre>
+ * All integers are big-endian. Reading reuses one growing buffer, so the payload of a frame
+ * is only valid until the next {@link #read()}.
+ */
+public class FrameCodec {
+    public static final byte TYPE_CALL = 1;
+    public static final byte TYPE_REPLY = 2;
+
+    /**
+     * A call whose payload is a {@link Batch} of calls, answered by a reply whose payload is a
+     * {@link Batch} of replies.
+     */
+    public static final byte TYPE_BATCH = 3;
+
+    /**
+     * Answered by an empty reply, used to check the channel.
+     */
+    public static final byte TYPE_PING = 4;
+
+    /**
+     * Answered by a reply carrying the service cache statistics of the server: int64 hits,
+     * int64 misses and int32 cached services.
+     */
+    public static final byte TYPE_STATS = 5;
+
+    /**
+     * A call whose payload is streamed through a pipe of the client instead of the frame. The
+     * frame carries int32 the descriptor of the read end in the client process and int32 the
+     * payload length, the root helper opens the pipe through {@code /proc/<pid>/fd}. If it
+     * cannot, it answers with {@link #RESULT_STREAM_UNAVAILABLE}.
+     */
+    public static final byte TYPE_STREAM_CALL = 6;
+
+    /**
+     * A reply whose payload follows in the bulk pipe given to the root helper at startup. The
+     * frame carries int32 the payload length.
+     */
+    public static final byte TYPE_STREAM_REPLY = 7;
+
+    /**
+     * A {@link Batch} of calls executed in order with {@code FLAG_ONEWAY}, never answered.
+     */
+    public static final byte TYPE_ONEWAY = 8;
+
+    /**
+     * Set in the code of the reply to a ping if the root helper can stream payloads.
+     */
+    public static final int CAPABILITY_STREAMS = 1;
+
+    /**
+     * The result code of a {@link #TYPE_STREAM_CALL} whose pipe the root helper could not open,
+     * e.g. because SELinux denies it. The client then sends the call inline.
+     */
+    public static final int RESULT_STREAM_UNAVAILABLE = -2;
+
+    /**
+     * Payloads from this size on are streamed when the root helper can, so they neither delay
+     * other frames nor grow the frame buffers.
+     */
+    public static final int STREAM_THRESHOLD = 256 * 1024;
+
+    /**
+     * Frames larger than this are rejected as corrupt.
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 4 + 1 + 4 + 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    private byte[] buffer = BufferPool.shared().acquire(BufferPool.MIN_SIZE);
+
+    private int id;
+
+    private byte type;
+
+    private int code;
+
+    private String service;
+
+    private int payloadLength;
+
+    public FrameCodec(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * Writes a frame and flushes it.
+     *
+     * @param service The service name, may be null for replies
+     * @param payload The payload, may be null if empty
+     */
+    public void write(int id, byte type, int code, String service,
+                      byte[] payload) throws IOException {
+        write(id, type, code, service, payload, payload == null ? 0 : payload.length);
+    }
+
+    /**
+     * Writes a frame whose payload is the first {@code payloadLength} bytes of
+     * {@code payload}, which may be a pooled buffer.
+     */
+    public synchronized void write(int id, byte type, int code, String service,
+                                   byte[] payload, int payloadLength) throws IOException {
+        byte[] serviceBytes = service == null ? EMPTY : service.getBytes(UTF_8);
+        if (serviceBytes.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Service name too long");
+        if (payload == null) payload = EMPTY;
+
+        out.writeInt(HEADER_SIZE + serviceBytes.length + payloadLength);
+        out.writeInt(id);
+        out.writeByte(type);
+        out.writeInt(code);
+        out.writeShort(serviceBytes.length);
+        out.write(serviceBytes);
+        out.write(payload, 0, payloadLength);
+        out.flush();
+    }
+
+    /**
+     * Reads the next frame, blocking until it is fully received. Once the stream ends or
+     * breaks, the read buffer goes back to the {@link BufferPool}.
+     *
+     * @return False if the stream ended cleanly before a new frame
+     * @throws IOException If the stream is broken or the frame is malformed
+     */
+    public boolean read() throws IOException {
+        try {
+            if (readFrame()) return true;
+        } catch (IOException e) {
+            releaseBuffer();
+            throw e;
+        }
+        releaseBuffer();
+        return false;
+    }
+
+    private boolean readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE)
+            throw new IOException("Invalid frame length " + length);
+
+        id = in.readInt();
+        type = in.readByte();
+        code = in.readInt();
+
+        int serviceLength = in.readShort();
+        if (serviceLength < 0 || HEADER_SIZE + serviceLength > length)
+            throw new IOException("Invalid service name length " + serviceLength);
+        ensureCapacity(serviceLength);
+        in.readFully(buffer, 0, serviceLength);
+        service = serviceLength == 0 ? null : new String(buffer, 0, serviceLength, UTF_8);
+
+        payloadLength = length - HEADER_SIZE - serviceLength;
+        ensureCapacity(payloadLength);
+        in.readFully(buffer, 0, payloadLength);
+        return true;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return The buffer holding the payload of the last frame read, from offset 0
+     * @see #getPayloadLength()
+     */
+    public byte[] getPayload() {
+        return buffer;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void releaseBuffer() {
+        BufferPool.shared().release(buffer);
+        buffer = EMPTY;
+        payloadLength = 0;
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.length < size) {
+            BufferPool.shared().release(buffer);
+            buffer = BufferPool.shared().acquire(size);
+        }
+    }
+}
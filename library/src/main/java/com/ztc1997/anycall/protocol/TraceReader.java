@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.ztc1997.anycall.protocol.TraceWriter.readVarLong;
+
+/**
+ * Reads the calls of a trace written by {@link TraceWriter}, in the order they completed, or
+ * were sent for oneway calls.
+ */
+public class TraceReader implements Closeable {
+    private final DataInputStream in;
+
+    private final List<String> strings = new ArrayList<>();
+
+    /**
+     * @throws IOException If the stream is not a trace of a known version
+     */
+    public TraceReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        if (this.in.readInt() != TraceWriter.MAGIC) throw new IOException("Not a trace");
+        int version = this.in.readUnsignedByte();
+        if (version != TraceWriter.VERSION) throw new IOException("Unknown trace version " + version);
+    }
+
+    /**
+     * @return The next call, null at the end of the trace or at a record cut short
+     * @throws IOException If the trace is malformed
+     */
+    public TraceRecord read() throws IOException {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type < 0) return null;
+
+                if (type == TraceWriter.RECORD_STRING) {
+                    int id = (int) readVarLong(in);
+                    if (id != strings.size()) throw new IOException("Unexpected string id " + id);
+                    strings.add(in.readUTF());
+                } else if (type == TraceWriter.RECORD_CALL) {
+                    long startNanos = readVarLong(in);
+                    long durationNanos = readVarLong(in);
+                    String className = string(readVarLong(in));
+                    String serviceName = string(readVarLong(in));
+                    String methodName = string(readVarLong(in));
+                    int code = (int) readVarLong(in);
+                    int zigzag = (int) readVarLong(in);
+                    int resultCode = (zigzag >>> 1) ^ -(zigzag & 1);
+                    byte[] data = readBytes();
+                    byte[] reply = readBytes();
+                    return new TraceRecord(startNanos, durationNanos, className, serviceName,
+                            methodName, code, resultCode, data, reply);
+                } else if (type == TraceWriter.RECORD_ONEWAY) {
+                    long startNanos = readVarLong(in);
+                    String className = string(readVarLong(in));
+                    String serviceName = string(readVarLong(in));
+                    String methodName = string(readVarLong(in));
+                    int code = (int) readVarLong(in);
+                    byte[] data = readBytes();
+                    return new TraceRecord(startNanos, className, serviceName, methodName, code, data);
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // The writer did not get to finish the last record
+            return null;
+        }
+    }
+
+    /**
+     * Reads the remaining calls and orders them by when they were made.
+     */
+    public List<TraceRecord> readAll() throws IOException {
+        List<TraceRecord> records = new ArrayList<>();
+        TraceRecord record;
+        while ((record = read()) != null) {
+            records.add(record);
+        }
+        sortByStart(records);
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private String string(long id) throws IOException {
+        if (id >= strings.size()) throw new IOException("Unknown string id " + id);
+        return strings.get((int) id);
+    }
+
+    private byte[] readBytes() throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length < 0) return null;
+        if (length > FrameCodec.MAX_FRAME_SIZE) throw new IOException("Invalid length " + length);
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void sortByStart(List<TraceRecord> records) {
+        Collections.sort(records, new Comparator<TraceRecord>() {
+            @Override
+            public int compare(TraceRecord a, TraceRecord b) {
+                return a.startNanos < b.startNanos ? -1 : a.startNanos == b.startNanos ? 0 : 1;
+            }
+        });
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+/**
+ * One call of a trace, see {@link TraceWriter}.
+ */
+public class TraceRecord {
+    /**
+     * When the call was made, relative to the start of the trace.
+     */
+    public final long startNanos;
+
+    /**
+     * From the call being made until its reply arrived.
+     */
+    public final long durationNanos;
+
+    public final String className;
+
+    public final String serviceName;
+
+    public final String methodName;
+
+    public final int code;
+
+    public final int resultCode;
+
+    /**
+     * The marshalled data parcel, null if it was not recorded, e.g. because it held binders.
+     */
+    public final byte[] data;
+
+    /**
+     * The marshalled reply parcel, null if it was not recorded.
+     */
+    public final byte[] reply;
+
+    /**
+     * Whether the call was sent oneway. It then has no duration, result code or reply.
+     */
+    public final boolean oneway;
+
+    public TraceRecord(long startNanos, long durationNanos, String className, String serviceName,
+                       String methodName, int code, int resultCode, byte[] data, byte[] reply) {
+        this(startNanos, durationNanos, className, serviceName, methodName, code, resultCode, data,
+                reply, false);
+    }
+
+    /**
+     * A oneway call.
+     */
+    public TraceRecord(long startNanos, String className, String serviceName, String methodName,
+                       int code, byte[] data) {
+        this(startNanos, 0, className, serviceName, methodName, code, 0, data, null, true);
+    }
+
+    private TraceRecord(long startNanos, long durationNanos, String className, String serviceName,
+                        String methodName, int code, int resultCode, byte[] data, byte[] reply,
+                        boolean oneway) {
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.className = className;
+        this.serviceName = serviceName;
+        this.methodName = methodName;
+        this.code = code;
+        this.resultCode = resultCode;
+        this.data = data;
+        this.reply = reply;
+        this.oneway = oneway;
+    }
+}
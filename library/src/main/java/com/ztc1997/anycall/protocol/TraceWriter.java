@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends calls to a trace. A trace starts with int32 {@link #MAGIC} and a version byte,
+ * followed by records, each starting with its type byte:
+ * <pre>
+ * {@link #RECORD_STRING}: varint id, modified UTF-8 string
+ * {@link #RECORD_CALL}:   varint start, varint duration (both nanoseconds),
+ *                         varint class, service and method string ids,
+ *                         varint code, zigzag varint result code,
+ *                         varint data length + 1 and data, varint reply length + 1 and reply
+ * {@link #RECORD_ONEWAY}: varint start, varint class, service and method string ids,
+ *                         varint code, varint data length + 1 and data
+ * </pre>
+ * Each string is written once, before the first call referring to it. A length of 0 means
+ * the parcel was not recorded. Records are written whole, so a trace cut short by a crash
+ * is readable up to its last complete record.
+ */
+public class TraceWriter implements Closeable {
+    public static final int MAGIC = 0x41435452;
+
+    public static final int VERSION = 1;
+
+    static final int RECORD_STRING = 1;
+
+    static final int RECORD_CALL = 2;
+
+    static final int RECORD_ONEWAY = 3;
+
+    private final DataOutputStream out;
+
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    public TraceWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    public synchronized void write(TraceRecord record) throws IOException {
+        int classId = stringId(record.className);
+        int serviceId = stringId(record.serviceName);
+        int methodId = stringId(record.methodName);
+
+        if (record.oneway) {
+            out.writeByte(RECORD_ONEWAY);
+            writeVarLong(out, record.startNanos);
+            writeVarLong(out, classId);
+            writeVarLong(out, serviceId);
+            writeVarLong(out, methodId);
+            writeVarLong(out, record.code & 0xffffffffL);
+            writeBytes(record.data);
+            return;
+        }
+
+        out.writeByte(RECORD_CALL);
+        writeVarLong(out, record.startNanos);
+        writeVarLong(out, record.durationNanos);
+        writeVarLong(out, classId);
+        writeVarLong(out, serviceId);
+        writeVarLong(out, methodId);
+        writeVarLong(out, record.code & 0xffffffffL);
+        writeVarLong(out, ((record.resultCode << 1) ^ (record.resultCode >> 31)) & 0xffffffffL);
+        writeBytes(record.data);
+        writeBytes(record.reply);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private int stringId(String string) throws IOException {
+        if (string == null) string = "";
+        Integer id = strings.get(string);
+        if (id != null) return id;
+
+        id = strings.size();
+        strings.put(string, id);
+        out.writeByte(RECORD_STRING);
+        writeVarLong(out, id);
+        out.writeUTF(string);
+        return id;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes an unsigned LEB128 value, 7 bits per byte.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
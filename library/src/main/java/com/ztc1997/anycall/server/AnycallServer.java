@@ -0,0 +1,526 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.server;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.ztc1997.anycall.Anycall;
+import com.ztc1997.anycall.protocol.Batch;
+import com.ztc1997.anycall.protocol.BufferPool;
+import com.ztc1997.anycall.protocol.FrameCodec;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The root helper, started once by {@code app_process} in the su shell and kept alive until
+ * its stdin is closed.
+ * <p>
+ * After printing {@link #READY} on stdout, it reads call frames from stdin and answers each
+ * with a reply frame carrying the same request id, see {@link FrameCodec}. Calls run
+ * concurrently on a worker pool, so replies are written as soon as each call finishes,
+ * regardless of request order.
+ * <p>
+ * When started with the pid of the client and the descriptor of a pipe in it, large replies
+ * are streamed through that pipe and large calls are read from pipes the client passes along,
+ * see {@link FrameCodec#TYPE_STREAM_CALL}.
+ * <p>
+ * When started with {@link #ARG_BINDER}, it instead broadcasts a {@link ProxyBinder} to the
+ * client and serves its calls on binder threads, see {@link #TRANSACTION_FORWARD}.
+ */
+@SuppressWarnings("TryWithIdenticalCatches")
+public class AnycallServer {
+    public static final String TAG = AnycallServer.class.getSimpleName();
+
+    /**
+     * Printed once on stdout when the server is ready to accept requests.
+     */
+    public static final String READY = "anycall-server-ready";
+
+    /**
+     * Starts the server in binder mode, followed by the uid and package of the client and the
+     * action of the broadcast carrying the binder.
+     */
+    public static final String ARG_BINDER = "--binder";
+
+    /**
+     * The bundle extra of the broadcast, holding the binder under the same key.
+     */
+    public static final String EXTRA_BINDER = "com.ztc1997.anycall.extra.BINDER";
+
+    /**
+     * Calls a service through the proxy binder. The data starts with the service name and the
+     * transaction code, followed by the data of the call. The reply holds the reply of the
+     * service, followed by an int that is 0 on success or an error code.
+     */
+    public static final int TRANSACTION_FORWARD = IBinder.FIRST_CALL_TRANSACTION;
+
+    /**
+     * Replies with a byte array, encoded like the payload of a {@link FrameCodec#TYPE_STATS}
+     * reply.
+     */
+    public static final int TRANSACTION_STATS = IBinder.FIRST_CALL_TRANSACTION + 1;
+
+    /**
+     * The maximum number of binder calls in flight at the same time.
+     */
+    private static final int MAX_CONCURRENT_CALLS = 16;
+
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(MAX_CONCURRENT_CALLS,
+            MAX_CONCURRENT_CALLS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Runs oneway calls in order, they return as soon as the kernel has queued them.
+     */
+    private final ExecutorService onewayWorker = Executors.newSingleThreadExecutor();
+
+    private final ServiceCache services = new ServiceCache();
+
+    private final BufferPool pool = BufferPool.shared();
+
+    private final int clientPid;
+
+    /**
+     * Where large replies are streamed, null if the client passed no pipe.
+     */
+    private final OutputStream bulkOut;
+
+    private final Object bulkLock = new Object();
+
+    private AnycallServer(int clientPid, OutputStream bulkOut) {
+        this.clientPid = clientPid;
+        this.bulkOut = bulkOut;
+    }
+
+    /**
+     * @param args Optionally the pid of the client and the descriptor of its bulk pipe, or
+     *             {@link #ARG_BINDER} and its parameters
+     */
+    public static void main(String[] args) {
+        // Anything else printed to stdout would corrupt the protocol
+        PrintStream out = System.out;
+        System.setOut(System.err);
+
+        if (args.length >= 4 && ARG_BINDER.equals(args[0])) {
+            try {
+                new AnycallServer(0, null).runBinder(Integer.parseInt(args[1]), args[2], args[3], System.in, out);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, e);
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            // The system context may have started threads of its own
+            System.exit(0);
+        }
+
+        int clientPid = 0;
+        OutputStream bulkOut = null;
+        if (args.length >= 2) try {
+            clientPid = Integer.parseInt(args[0]);
+            bulkOut = new FileOutputStream(clientFd(clientPid, Integer.parseInt(args[1])));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, e);
+        } catch (IOException e) {
+            // Large payloads stay inline
+            Log.w(TAG, e);
+        }
+
+        try {
+            new AnycallServer(clientPid, bulkOut).run(System.in, out);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private static String clientFd(int pid, int fd) {
+        return "/proc/" + pid + "/fd/" + fd;
+    }
+
+    private void run(InputStream is, OutputStream os) throws IOException {
+        workers.prestartAllCoreThreads();
+        warmUp();
+        os.write((READY + "\n").getBytes());
+        os.flush();
+
+        final FrameCodec codec = new FrameCodec(is, os);
+        try {
+            while (codec.read()) {
+                // The frame buffer is reused by the next read, copy the call out of it first
+                final int id = codec.getId();
+                switch (codec.getType()) {
+                    case FrameCodec.TYPE_CALL:
+                        final int code = codec.getCode();
+                        final String serviceName = codec.getService();
+                        final Parcel data = Parcel.obtain();
+                        data.unmarshall(codec.getPayload(), 0, codec.getPayloadLength());
+                        data.setDataPosition(0);
+
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    handleCall(codec, id, code, serviceName, data);
+                                } catch (IOException e) {
+                                    Log.w(TAG, e);
+                                } finally {
+                                    data.recycle();
+                                }
+                            }
+                        });
+                        break;
+                    case FrameCodec.TYPE_STREAM_CALL:
+                        if (codec.getPayloadLength() < 8) {
+                            codec.write(id, FrameCodec.TYPE_REPLY, Anycall.ERROR_MISSING_PARAMETERS, null, null);
+                            break;
+                        }
+                        final int streamCode = codec.getCode();
+                        final String streamServiceName = codec.getService();
+                        ByteBuffer header = ByteBuffer.wrap(codec.getPayload(), 0, codec.getPayloadLength());
+                        final int fd = header.getInt();
+                        final int length = header.getInt();
+
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    handleStreamCall(codec, id, streamCode, streamServiceName, fd, length);
+                                } catch (IOException e) {
+                                    Log.w(TAG, e);
+                                }
+                            }
+                        });
+                        break;
+                    case FrameCodec.TYPE_PING:
+                        codec.write(id, FrameCodec.TYPE_REPLY,
+                                bulkOut != null ? FrameCodec.CAPABILITY_STREAMS : 0, null, null);
+                        break;
+                    case FrameCodec.TYPE_STATS:
+                        codec.write(id, FrameCodec.TYPE_REPLY, 0, null, encodeStats());
+                        break;
+                    case FrameCodec.TYPE_ONEWAY:
+                        final byte[] onewayFrame = pool.acquire(codec.getPayloadLength());
+                        System.arraycopy(codec.getPayload(), 0, onewayFrame, 0, codec.getPayloadLength());
+                        final Batch onewayCalls;
+                        try {
+                            onewayCalls = Batch.decode(onewayFrame, 0, codec.getPayloadLength());
+                        } catch (IOException e) {
+                            Log.w(TAG, e);
+                            pool.release(onewayFrame);
+                            break;
+                        }
+
+                        onewayWorker.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    handleOneway(onewayCalls);
+                                } finally {
+                                    pool.release(onewayFrame);
+                                }
+                            }
+                        });
+                        break;
+                    case FrameCodec.TYPE_BATCH:
+                        final byte[] frame = pool.acquire(codec.getPayloadLength());
+                        System.arraycopy(codec.getPayload(), 0, frame, 0, codec.getPayloadLength());
+                        final Batch calls;
+                        try {
+                            calls = Batch.decode(frame, 0, codec.getPayloadLength());
+                        } catch (IOException e) {
+                            Log.w(TAG, e);
+                            pool.release(frame);
+                            codec.write(id, FrameCodec.TYPE_REPLY, Anycall.ERROR_MISSING_PARAMETERS, null, null);
+                            break;
+                        }
+
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    handleBatch(codec, id, calls);
+                                } catch (IOException e) {
+                                    Log.w(TAG, e);
+                                } finally {
+                                    pool.release(frame);
+                                }
+                            }
+                        });
+                        break;
+                }
+            }
+        } finally {
+            workers.shutdown();
+            onewayWorker.shutdown();
+        }
+    }
+
+    /**
+     * Publishes the proxy binder, then serves calls on binder threads until stdin is closed.
+     */
+    private void runBinder(int clientUid, String packageName, String action, InputStream is,
+                           OutputStream os) throws IOException {
+        warmUp();
+        if (!publish(new ProxyBinder(this, clientUid), packageName, action)) return;
+        os.write((READY + "\n").getBytes());
+        os.flush();
+
+        //noinspection StatementWithEmptyBody
+        while (is.read() >= 0) ;
+    }
+
+    /**
+     * Broadcasts the binder to the client package through a system context, which is how a
+     * process outside of the framework can send one.
+     *
+     * @return False if the broadcast could not be sent
+     */
+    private static boolean publish(IBinder binder, String packageName, String action) {
+        try {
+            Looper.prepareMainLooper();
+            Class<?> activityThread = Class.forName("android.app.ActivityThread");
+            Object thread = activityThread.getMethod("systemMain").invoke(null);
+            Context context = (Context) activityThread.getMethod("getSystemContext").invoke(thread);
+
+            // Bundle#putBinder only exists from API 18 on, older versions have the hidden putIBinder
+            Bundle extras = new Bundle();
+            Bundle.class.getMethod(Build.VERSION.SDK_INT >= 18 ? "putBinder" : "putIBinder",
+                    String.class, IBinder.class).invoke(extras, EXTRA_BINDER, binder);
+            context.sendBroadcast(new Intent(action).setPackage(packageName).putExtra(EXTRA_BINDER, extras));
+            return true;
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, e);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, e);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, e);
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, e);
+        } catch (SecurityException e) {
+            Log.w(TAG, e);
+        }
+        return false;
+    }
+
+    /**
+     * Gets the first calls off the slow path before the client is told to send them.
+     */
+    private void warmUp() {
+        try {
+            services.warmUp();
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, e);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, e);
+        }
+    }
+
+    private void handleCall(FrameCodec codec, int id, int code, String serviceName,
+                            Parcel data) throws IOException {
+        Parcel reply = Parcel.obtain();
+        try {
+            int resultCode = transact(serviceName, code, data, reply, 0);
+            byte[] payload = resultCode == 0 ? reply.marshall() : null;
+            writeReply(codec, id, resultCode, payload, payload == null ? 0 : payload.length);
+        } finally {
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Reads the data of the call from the pipe of the client, then runs it like any other.
+     */
+    private void handleStreamCall(FrameCodec codec, int id, int code, String serviceName,
+                                  int fd, int length) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(clientFd(clientPid, fd)));
+        } catch (IOException e) {
+            // The client sends the call again inline
+            Log.w(TAG, e);
+            codec.write(id, FrameCodec.TYPE_REPLY, FrameCodec.RESULT_STREAM_UNAVAILABLE, null, null);
+            return;
+        }
+
+        Parcel data = Parcel.obtain();
+        try {
+            byte[] buffer = pool.acquire(length);
+            try {
+                try {
+                    in.readFully(buffer, 0, length);
+                } finally {
+                    in.close();
+                }
+                data.unmarshall(buffer, 0, length);
+                data.setDataPosition(0);
+            } catch (IOException e) {
+                Log.w(TAG, e);
+                codec.write(id, FrameCodec.TYPE_REPLY, Anycall.ERROR_MISSING_PARAMETERS, null, null);
+                return;
+            } finally {
+                pool.release(buffer);
+            }
+
+            handleCall(codec, id, code, serviceName, data);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * Writes a reply frame. Large payloads go through the bulk pipe right after their frame,
+     * which the client reads in the same order.
+     */
+    private void writeReply(FrameCodec codec, int id, int resultCode, byte[] payload,
+                            int length) throws IOException {
+        if (bulkOut == null || length < FrameCodec.STREAM_THRESHOLD) {
+            codec.write(id, FrameCodec.TYPE_REPLY, resultCode, null, payload, length);
+            return;
+        }
+
+        byte[] header = ByteBuffer.allocate(4).putInt(length).array();
+        synchronized (bulkLock) {
+            codec.write(id, FrameCodec.TYPE_STREAM_REPLY, resultCode, null, header);
+            bulkOut.write(payload, 0, length);
+            bulkOut.flush();
+        }
+    }
+
+    /**
+     * Runs the calls back-to-back and answers with all replies in one frame.
+     */
+    private void handleBatch(FrameCodec codec, int id, Batch calls) throws IOException {
+        Batch replies = new Batch(calls.size());
+        // One pair of parcels serves the whole batch
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            for (int i = 0; i < calls.size(); i++) {
+                data.setDataSize(0);
+                if (calls.payloads[i] != null)
+                    data.unmarshall(calls.payloads[i], calls.offsets[i], calls.lengths[i]);
+                data.setDataPosition(0);
+                reply.setDataSize(0);
+                reply.setDataPosition(0);
+
+                int resultCode = transact(calls.services[i], calls.codes[i], data, reply, 0);
+                replies.set(i, null, resultCode, resultCode == 0 ? reply.marshall() : null);
+            }
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+
+        byte[] payload = pool.acquire(replies.encodedLength());
+        try {
+            writeReply(codec, id, 0, payload, replies.encode(payload));
+        } finally {
+            pool.release(payload);
+        }
+    }
+
+    /**
+     * Runs the calls of a {@link FrameCodec#TYPE_ONEWAY} frame, failures are only logged.
+     */
+    private void handleOneway(Batch calls) {
+        Parcel data = Parcel.obtain();
+        try {
+            for (int i = 0; i < calls.size(); i++) {
+                data.setDataSize(0);
+                if (calls.payloads[i] != null)
+                    data.unmarshall(calls.payloads[i], calls.offsets[i], calls.lengths[i]);
+                data.setDataPosition(0);
+
+                int resultCode = transact(calls.services[i], calls.codes[i], data, null, IBinder.FLAG_ONEWAY);
+                if (resultCode != 0)
+                    Log.w(TAG, "Oneway call " + calls.services[i] + " " + calls.codes[i] + " failed: " + resultCode);
+            }
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * @param reply Null if flags contains {@link IBinder#FLAG_ONEWAY}
+     * @return 0 on success, or an error code
+     */
+    int transact(String serviceName, int code, Parcel data, Parcel reply, int flags) {
+        if (serviceName == null) return Anycall.ERROR_MISSING_PARAMETERS;
+
+        IBinder service;
+        try {
+            service = services.get(serviceName);
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, e);
+            return Anycall.ERROR_FAILED_TO_GET_SERVICE_MANAGER;
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, e);
+            return Anycall.ERROR_FAILED_TO_GET_SERVICE_MANAGER;
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, e);
+            return Anycall.ERROR_FAILED_TO_GET_SERVICE_MANAGER;
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, e);
+            return Anycall.ERROR_FAILED_TO_GET_SERVICE_MANAGER;
+        }
+        if (service == null) return Anycall.ERROR_FAILED_TO_GET_SERVICE;
+
+        try {
+            if (service.transact(code, data, reply, flags)) return 0;
+            Log.w(TAG, serviceName + " does not know transaction code " + code);
+            return Anycall.ERROR_TRANSACTION_FAILED;
+        } catch (DeadObjectException e) {
+            // The next call looks the service up again. Whether this one may be sent again is
+            // up to the client, the service may have executed it before dying.
+            services.invalidate(serviceName, service);
+            Log.w(TAG, e);
+            return Anycall.ERROR_TRANSACTION_FAILED;
+        } catch (RemoteException e) {
+            Log.w(TAG, e);
+            return Anycall.ERROR_TRANSACTION_FAILED;
+        }
+    }
+
+    byte[] encodeStats() {
+        return ByteBuffer.allocate(20)
+                .putLong(services.getHits())
+                .putLong(services.getMisses())
+                .putInt(services.size())
+                .array();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.server;
+
+import android.os.Binder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Handed to the client in binder mode. Each call is forwarded to its service on the binder
+ * thread it arrives on, see {@link AnycallServer#TRANSACTION_FORWARD}.
+ */
+class ProxyBinder extends Binder {
+    private static final String TAG = AnycallServer.TAG;
+
+    private final AnycallServer server;
+
+    private final int clientUid;
+
+    ProxyBinder(AnycallServer server, int clientUid) {
+        this.server = server;
+        this.clientUid = clientUid;
+    }
+
+    @Override
+    protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+        if (code != AnycallServer.TRANSACTION_FORWARD && code != AnycallServer.TRANSACTION_STATS)
+            return super.onTransact(code, data, reply, flags);
+
+        // Whoever else got hold of the binder would call services as root
+        int callingUid = Binder.getCallingUid();
+        if (callingUid != clientUid) {
+            Log.w(TAG, "Rejected a call from uid " + callingUid);
+            return false;
+        }
+
+        if (code == AnycallServer.TRANSACTION_STATS) {
+            reply.writeByteArray(server.encodeStats());
+            return true;
+        }
+
+        String serviceName = data.readString();
+        int serviceCode = data.readInt();
+        boolean oneway = (flags & FLAG_ONEWAY) != 0;
+        int offset = data.dataPosition();
+        Parcel forward = Parcel.obtain();
+        try {
+            forward.appendFrom(data, offset, data.dataSize() - offset);
+            forward.setDataPosition(0);
+
+            if (oneway) {
+                int resultCode = server.transact(serviceName, serviceCode, forward, null, FLAG_ONEWAY);
+                if (resultCode != 0) Log.w(TAG, "Oneway call " + serviceName + " " + serviceCode + " failed: " + resultCode);
+                return true;
+            }
+
+            // The service writes straight into the reply going back to the client
+            int resultCode = server.transact(serviceName, serviceCode, forward, reply, 0);
+            if (resultCode != 0) reply.setDataSize(0);
+            reply.setDataPosition(reply.dataSize());
+            reply.writeInt(resultCode);
+        } finally {
+            forward.recycle();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.server;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks up services from the service manager and keeps the binders, so repeated calls to a
+ * service skip the lookup. An entry is dropped as soon as its service dies.
+ */
+class ServiceCache {
+    private final ConcurrentHashMap<String, IBinder> services = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile Method getService;
+
+    /**
+     * @return The service or null if it is not running
+     */
+    IBinder get(String name) throws ClassNotFoundException, NoSuchMethodException,
+            IllegalAccessException, InvocationTargetException {
+        IBinder service = services.get(name);
+        if (service != null) {
+            hits.incrementAndGet();
+            return service;
+        }
+
+        misses.incrementAndGet();
+        service = lookup(name);
+        if (service == null) return null;
+
+        IBinder.DeathRecipient recipient = link(name, service);
+        if (recipient == null) return service;
+
+        // Another thread may have missed at the same time, only one entry keeps a recipient
+        IBinder cached = services.putIfAbsent(name, service);
+        if (cached != null) {
+            service.unlinkToDeath(recipient, 0);
+            return cached;
+        }
+        // The recipient may have run before the entry was there
+        if (!service.isBinderAlive()) invalidate(name, service);
+        return service;
+    }
+
+    /**
+     * Drops the entry if it is still the given binder, e.g. after a DeadObjectException.
+     */
+    void invalidate(String name, IBinder service) {
+        services.remove(name, service);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    int size() {
+        return services.size();
+    }
+
+    /**
+     * Resolves the service manager up front.
+     */
+    void warmUp() throws ClassNotFoundException, NoSuchMethodException {
+        serviceManagerMethod();
+    }
+
+    private IBinder lookup(String name) throws ClassNotFoundException, NoSuchMethodException,
+            IllegalAccessException, InvocationTargetException {
+        return (IBinder) serviceManagerMethod().invoke(null, name);
+    }
+
+    private Method serviceManagerMethod() throws ClassNotFoundException, NoSuchMethodException {
+        Method method = getService;
+        if (method == null) {
+            method = Class.forName("android.os.ServiceManager").getMethod("getService", String.class);
+            getService = method;
+        }
+        return method;
+    }
+
+    /**
+     * @return The recipient dropping the entry of the service once it dies, null if it is
+     * already dead
+     */
+    private IBinder.DeathRecipient link(final String name, final IBinder service) {
+        IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {
+                invalidate(name, service);
+            }
+        };
+        try {
+            service.linkToDeath(recipient, 0);
+            return recipient;
+        } catch (RemoteException e) {
+            // Already dead
+            return null;
+        }
+    }
+}
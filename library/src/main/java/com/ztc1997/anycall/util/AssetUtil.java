@@ -18,119 +18,146 @@
 package com.ztc1997.anycall.util;
 
 import android.content.res.AssetManager;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 public class AssetUtil {
+    private static final int BUFFER_SIZE = 8192;
+
     private AssetUtil() {
     }
 
-    public static boolean compareAndCopyAssets(AssetManager am, String in, String out) {
-        Log.d("AssetUtil", "compareAndCopyAssets");
-        InputStream ais = null;
-        byte[] src;
+    /**
+     * Copies an asset to a file unless a previous copy is still in place.
+     * <p>
+     * Each copy leaves a stamp file next to the output recording the asset, the version and
+     * the copied size, so checking an existing copy costs two small reads instead of
+     * comparing the contents. The file is written to a temporary file first and renamed, so
+     * a concurrent reader never sees it half-written.
+     *
+     * @param version Changes whenever the asset may have changed, e.g. the apk update time.
+     *                Null to always copy.
+     * @return True if the file is in place
+     */
+    @WorkerThread
+    public static boolean extractAsset(AssetManager am, String in, File out, @Nullable String version) {
+        File stampFile = new File(out.getPath() + ".stamp");
+        String stamp = in + "\n" + version + "\n";
+        if (version != null && out.exists() && (stamp + out.length()).equals(readStamp(stampFile)))
+            return true;
+
+        Log.d("AssetUtil", "extractAsset " + in);
+        File tmp = null;
+        InputStream is = null;
+        OutputStream os = null;
         try {
-            ais = new BufferedInputStream(am.open(in));
-            src = new byte[ais.available()];
-            if (ais.read(src) < 0) return false;
+            tmp = File.createTempFile(out.getName(), ".tmp", out.getParentFile());
+            is = am.open(in);
+            os = new FileOutputStream(tmp);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) > 0) {
+                os.write(buffer, 0, length);
+            }
+            os.close();
+            os = null;
+
+            // Without a stamp a crash between the two renames means a new copy next time, never
+            // an old stamp vouching for a new file
+            stampFile.delete();
+            if (!tmp.renameTo(out)) return false;
+            tmp = null;
+            if (version != null && !writeStamp(stampFile, stamp + out.length()))
+                Log.w("AssetUtil", "No stamp for " + out + ", it is copied again next time");
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         } finally {
-            if (ais != null) try {
-                ais.close();
+            if (is != null) try {
+                is.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }
-
-        File outFile = new File(out);
-        if (compare(src, outFile)) return true;
-
-        outFile.delete();
-        OutputStream oos = null;
-        try {
-            oos = new BufferedOutputStream(new FileOutputStream(outFile));
-            oos.write(src);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        } finally {
-            if (oos != null) try {
-                oos.close();
+            if (os != null) try {
+                os.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            if (tmp != null) tmp.delete();
         }
+    }
 
-        return true;
+    /**
+     * Copies an asset to a file unless it is already there with the same contents.
+     *
+     * @deprecated Use {@link #extractAsset(AssetManager, String, File, String)}, which checks
+     * a previous copy by its stamp instead of reading it. This method now always copies.
+     */
+    @Deprecated
+    @WorkerThread
+    public static boolean compareAndCopyAssets(AssetManager am, String in, String out) {
+        return extractAsset(am, in, new File(out), null);
     }
 
-    /*public static boolean copyAssets(AssetManager am, String in, String out) {
-        InputStream is = null;
-        OutputStream os = null;
+    private static String readStamp(File file) {
+        if (!file.exists()) return null;
+        BufferedReader reader = null;
         try {
-            is = am.open(in);
-
-            os = new FileOutputStream(out);
-
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = is.read(buffer)) > 0) {
-                os.write(buffer, 0, length);
+            reader = new BufferedReader(new FileReader(file));
+            StringBuilder stamp = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (stamp.length() > 0) stamp.append('\n');
+                stamp.append(line);
             }
-            os.flush();
-            return true;
+            return stamp.toString();
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         } finally {
-            if (os != null)
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            if (is != null)
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (reader != null) try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        return false;
-    }*/
+    }
 
-    private static boolean compare(byte[] src, File file) {
-        Log.d("AssetUtil", "compare");
-        if (!file.exists()) return false;
-        InputStream is = null;
+    private static boolean writeStamp(File file, String stamp) {
+        File tmp = null;
+        Writer writer = null;
         try {
-            int size = src.length;
-            is = new FileInputStream(file);
-            if (is.available() != size) return false;
-
-            for (byte sb : src) {
-                byte b = (byte) is.read();
-                if (sb != b) return false;
-            }
+            tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            writer = new OutputStreamWriter(new FileOutputStream(tmp));
+            writer.write(stamp);
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(file)) return false;
+            tmp = null;
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         } finally {
-            if (is != null) try {
-                is.close();
+            if (writer != null) try {
+                writer.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            if (tmp != null) tmp.delete();
         }
-        return true;
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package android.os;
+
+import java.util.Arrays;
+
+/**
+ * Stand-in for the platform class in JVM tests, where android.jar only has stubs. It holds
+ * plain bytes, enough for the transports that copy and forward parcels. Test classes come
+ * first on the classpath, so it replaces the stub.
+ */
+public final class Parcel {
+    private byte[] data = new byte[16];
+
+    private int size;
+
+    private int position;
+
+    private boolean recycled;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        if (recycled) throw new IllegalStateException("Recycled twice");
+        recycled = true;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+
+    public int dataSize() {
+        return size;
+    }
+
+    public int dataPosition() {
+        return position;
+    }
+
+    public int dataCapacity() {
+        return data.length;
+    }
+
+    public void setDataSize(int size) {
+        ensure(size);
+        this.size = size;
+        if (position > size) position = size;
+    }
+
+    public void setDataPosition(int position) {
+        this.position = position;
+    }
+
+    public void setDataCapacity(int capacity) {
+        if (capacity >= size) data = Arrays.copyOf(data, capacity);
+    }
+
+    public boolean hasFileDescriptors() {
+        return false;
+    }
+
+    public void writeInt(int value) {
+        ensure(position + 4);
+        data[position++] = (byte) (value >>> 24);
+        data[position++] = (byte) (value >>> 16);
+        data[position++] = (byte) (value >>> 8);
+        data[position++] = (byte) value;
+        size = Math.max(size, position);
+    }
+
+    public int readInt() {
+        int value = (data[position] & 0xff) << 24 | (data[position + 1] & 0xff) << 16
+                | (data[position + 2] & 0xff) << 8 | data[position + 3] & 0xff;
+        position += 4;
+        return value;
+    }
+
+    public void writeByte(byte value) {
+        writeInt(value);
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public long readLong() {
+        return (long) readInt() << 32 | readInt() & 0xffffffffL;
+    }
+
+    /**
+     * Like the platform, the length in chars, -1 for null, then UTF-16 padded to 4 bytes.
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(value.length());
+        int length = (value.length() * 2 + 3) & ~3;
+        ensure(position + length);
+        for (int i = 0; i < value.length(); i++) {
+            data[position + i * 2] = (byte) (value.charAt(i) >>> 8);
+            data[position + i * 2 + 1] = (byte) value.charAt(i);
+        }
+        Arrays.fill(data, position + value.length() * 2, position + length, (byte) 0);
+        position += length;
+        size = Math.max(size, position);
+    }
+
+    public String readString() {
+        int length = readInt();
+        if (length < 0) return null;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ((data[position + i * 2] & 0xff) << 8 | data[position + i * 2 + 1] & 0xff);
+        }
+        position += (length * 2 + 3) & ~3;
+        return new String(chars);
+    }
+
+    public void writeByteArray(byte[] bytes) {
+        writeInt(bytes.length);
+        ensure(position + bytes.length);
+        System.arraycopy(bytes, 0, data, position, bytes.length);
+        position += bytes.length;
+        size = Math.max(size, position);
+    }
+
+    public byte[] marshall() {
+        return Arrays.copyOf(data, size);
+    }
+
+    public void unmarshall(byte[] bytes, int offset, int length) {
+        data = Arrays.copyOfRange(bytes, offset, offset + length);
+        size = length;
+        position = length;
+    }
+
+    public void appendFrom(Parcel parcel, int offset, int length) {
+        ensure(position + length);
+        System.arraycopy(parcel.data, offset, data, position, length);
+        position += length;
+        size = Math.max(size, position);
+    }
+
+    private void ensure(int capacity) {
+        if (capacity > data.length) data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AdmissionTransportTest {
+    private FakeTransport fake;
+
+    private AdmissionTransport admission;
+
+    private Results results;
+
+    @Before
+    public void setUp() {
+        fake = new FakeTransport();
+        admission = new AdmissionTransport(fake, new Metrics());
+        results = new Results();
+    }
+
+    @Test(timeout = 5000)
+    public void blockingWithoutCapacitySendsWhileSlotsAreFree() {
+        admission.configure(2, 0, Anycall.OVERFLOW_BLOCK);
+        call(0, Anycall.PRIORITY_NORMAL);
+        call(1, Anycall.PRIORITY_NORMAL);
+
+        assertEquals(2, fake.getCalls().size());
+        assertEquals(0, admission.getOverflowCount());
+    }
+
+    @Test(timeout = 5000)
+    public void blockingWaitsForAFreeSlot() throws Exception {
+        admission.configure(1, 0, Anycall.OVERFLOW_BLOCK);
+        call(0, Anycall.PRIORITY_NORMAL);
+
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                call(1, Anycall.PRIORITY_NORMAL);
+            }
+        };
+        blocked.start();
+        while (blocked.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, fake.getCalls().size());
+
+        fake.reply(0, 0);
+        blocked.join();
+        assertEquals(1, fake.getTag(1));
+        assertEquals(1, admission.getOverflowCount());
+    }
+
+    @Test
+    public void sendsWaitingCallsHighestPriorityFirst() {
+        admission.configure(1, 10, Anycall.OVERFLOW_FAIL);
+        call(0, Anycall.PRIORITY_NORMAL);
+        call(1, Anycall.PRIORITY_BULK);
+        call(2, Anycall.PRIORITY_NORMAL);
+        call(3, Anycall.PRIORITY_INTERACTIVE);
+        call(4, Anycall.PRIORITY_NORMAL);
+        assertArrayEquals(new int[]{1, 2, 1}, admission.getLaneDepths());
+
+        for (int i = 0; i < 5; i++) {
+            fake.reply(i, 0);
+        }
+        List<Integer> order = new ArrayList<>();
+        for (FakeTransport.Call call : fake.getCalls()) {
+            order.add(call.tag);
+        }
+        assertEquals(listOf(0, 3, 2, 4, 1), order);
+        assertArrayEquals(new int[]{0, 0, 0}, admission.getLaneDepths());
+        assertEquals(listOf(0, 0, 0, 0, 0), results.codes);
+    }
+
+    @Test
+    public void failRejectsTheNewCall() {
+        admission.configure(1, 1, Anycall.OVERFLOW_FAIL);
+        call(0, Anycall.PRIORITY_NORMAL);
+        call(1, Anycall.PRIORITY_NORMAL);
+        call(2, Anycall.PRIORITY_INTERACTIVE);
+
+        assertEquals(listOf(Anycall.ERROR_QUEUE_FULL), results.codes);
+        assertEquals(listOf(2), results.tags);
+        assertEquals(1, admission.getOverflowCount());
+
+        fake.reply(0, 0);
+        assertEquals(1, fake.getTag(1));
+    }
+
+    @Test
+    public void dropOldestRejectsTheOldestCallNotAbove() {
+        admission.configure(1, 1, Anycall.OVERFLOW_DROP_OLDEST);
+        call(0, Anycall.PRIORITY_NORMAL);
+        call(1, Anycall.PRIORITY_NORMAL);
+        call(2, Anycall.PRIORITY_NORMAL);
+        assertEquals(listOf(1), results.tags);
+
+        // Nothing of its priority or lower is waiting, so the new call goes
+        call(3, Anycall.PRIORITY_BULK);
+        assertEquals(listOf(1, 3), results.tags);
+        assertEquals(listOf(Anycall.ERROR_QUEUE_FULL, Anycall.ERROR_QUEUE_FULL), results.codes);
+        assertEquals(2, admission.getOverflowCount());
+
+        fake.reply(0, 0);
+        assertEquals(2, fake.getTag(1));
+    }
+
+    @Test
+    public void releaseDrainsUpToTheLimit() {
+        admission.configure(2, 10, Anycall.OVERFLOW_FAIL);
+        for (int i = 0; i < 5; i++) {
+            call(i, Anycall.PRIORITY_NORMAL);
+        }
+        assertEquals(2, fake.getCalls().size());
+
+        fake.reply(0, Anycall.ERROR_TRANSACTION_FAILED);
+        assertEquals(3, fake.getCalls().size());
+        fake.reply(1, 0);
+        fake.reply(2, 0);
+        assertEquals(5, fake.getCalls().size());
+        assertEquals(listOf(Anycall.ERROR_TRANSACTION_FAILED, 0, 0), results.codes);
+    }
+
+    @Test
+    public void stopFailsWaitingCalls() {
+        admission.configure(1, 10, Anycall.OVERFLOW_FAIL);
+        call(0, Anycall.PRIORITY_NORMAL);
+        call(1, Anycall.PRIORITY_NORMAL);
+        admission.stop();
+
+        assertEquals(listOf(1), results.tags);
+        assertEquals(listOf(Anycall.ERROR_TRANSACTION_FAILED), results.codes);
+        assertArrayEquals(new int[]{0, 0, 0}, admission.getLaneDepths());
+    }
+
+    private void call(final int tag, int priority) {
+        admission.setPriority(priority);
+        Parcel data = FakeTransport.tagged(tag);
+        admission.transact("service", 1, data, new Transport.ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                results.add(tag, resultCode);
+            }
+        });
+        data.recycle();
+    }
+
+    private static List<Integer> listOf(Integer... values) {
+        List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+
+    private static class Results {
+        final List<Integer> tags = new ArrayList<>();
+
+        final List<Integer> codes = new ArrayList<>();
+
+        synchronized void add(int tag, int code) {
+            tags.add(tag);
+            codes.add(code);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CallFutureTest {
+    private static final CallFuture.Function<Integer, Integer> DOUBLE = new CallFuture.Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer value) {
+            return value * 2;
+        }
+    };
+
+    @Test
+    public void cancellingAThenFutureCancelsBoth() {
+        CallFuture<Integer> future = new CallFuture<>();
+        CallFuture<Integer> next = future.then(DOUBLE);
+
+        assertTrue(next.cancel(true));
+        assertTrue(next.isCancelled());
+        assertTrue(future.isCancelled());
+        assertFalse(next.cancel(true));
+    }
+
+    @Test
+    public void cancellingTheSourceCancelsTheThenFuture() {
+        CallFuture<Integer> future = new CallFuture<>();
+        CallFuture<Integer> next = future.then(DOUBLE);
+
+        assertTrue(future.cancel(false));
+        assertTrue(next.isCancelled());
+        assertFalse(next.cancel(false));
+    }
+
+    @Test
+    public void thenAppliesTheFunction() throws Exception {
+        CallFuture<Integer> future = new CallFuture<>();
+        CallFuture<Integer> next = future.then(DOUBLE);
+        future.set(21);
+
+        assertEquals(42, (int) next.get());
+        assertFalse(next.cancel(true));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void thenPassesFailuresOn() throws Exception {
+        CallFuture<Integer> future = new CallFuture<>();
+        CallFuture<Integer> next = future.then(DOUBLE);
+        future.setException(new AnycallException(Anycall.ERROR_TRANSACTION_FAILED));
+        next.get();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FailoverTransportTest {
+    private static final String SERVICE = "power";
+
+    private static final int IDEMPOTENT = 1;
+
+    private static final int OTHER = 2;
+
+    private FakeTransport fake;
+
+    private FailoverTransport failover;
+
+    private final BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() {
+        fake = new FakeTransport();
+        failover = new FailoverTransport(new QueueingTransport(fake, new Metrics()));
+        failover.setIdempotent(SERVICE, IDEMPOTENT, true);
+        failover.configure(3, 10, 10);
+        failover.start(null);
+    }
+
+    @Test(timeout = 5000)
+    public void resendsIdempotentCallsOnceTheSessionIsBack() throws Exception {
+        call(0, IDEMPOTENT);
+        call(1, OTHER);
+        fake.die();
+
+        // Only the call that must not run twice fails right away
+        assertEquals(Anycall.ERROR_SESSION_DIED, (int) results.take());
+        fake.awaitCalls(3, 5000);
+        assertEquals(0, fake.getTag(2));
+
+        fake.reply(2, 0);
+        assertEquals(0, (int) results.take());
+        assertNull(results.poll());
+    }
+
+    @Test(timeout = 5000)
+    public void sendsACallAgainAtMostTwice() throws Exception {
+        call(0, IDEMPOTENT);
+        fake.die();
+        fake.awaitCalls(2, 5000);
+        fake.die();
+        fake.awaitCalls(3, 5000);
+        assertNull(results.poll());
+
+        // Maybe the call itself kills the session
+        fake.die();
+        assertEquals(Anycall.ERROR_SESSION_DIED, (int) results.take());
+        fake.awaitStarts(4, 5000);
+        assertEquals(3, fake.getCalls().size());
+    }
+
+    @Test(timeout = 5000)
+    public void backsOffBetweenFailedRestarts() throws Exception {
+        failover.configure(3, 100, 150);
+        fake.setStartResults(false, false, true);
+        call(0, IDEMPOTENT);
+        long diedAt = System.nanoTime();
+        fake.die();
+
+        fake.awaitCalls(2, 5000);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - diedAt);
+        assertTrue(fake.getStarts() >= 4);
+        // Right away, then after 100 and 150 ms
+        assertTrue(elapsedMillis + " ms", elapsedMillis >= 250);
+        assertTrue(fake.isRunning());
+    }
+
+    @Test(timeout = 5000)
+    public void failsParkedCallsOnceItGivesUp() throws Exception {
+        fake.setStartResults(false, false, false);
+        call(0, IDEMPOTENT);
+        fake.die();
+
+        assertEquals(Anycall.ERROR_SESSION_DIED, (int) results.take());
+        assertEquals(4, fake.getStarts());
+        assertEquals(1, fake.getCalls().size());
+    }
+
+    @Test(timeout = 5000)
+    public void stopFailsParkedCalls() throws Exception {
+        fake.setHoldStarts(true);
+        call(0, IDEMPOTENT);
+        fake.die();
+        fake.awaitStarts(2, 5000);
+
+        failover.stop();
+        assertEquals(Anycall.ERROR_SESSION_DIED, (int) results.take());
+        fake.finishStart(true);
+        assertEquals(1, fake.getCalls().size());
+    }
+
+    private void call(int tag, int code) {
+        Parcel data = FakeTransport.tagged(tag);
+        failover.transact(SERVICE, code, data, new Transport.ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                results.add(resultCode);
+            }
+        });
+        data.recycle();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the calls sent to it and answers them when told to. Every data parcel of a test
+ * holds one int, the tag, which identifies the call.
+ */
+class FakeTransport implements Transport {
+    private final List<Call> calls = new ArrayList<>();
+
+    private final List<Boolean> startResults = new ArrayList<>();
+
+    private boolean running;
+
+    private int starts;
+
+    private DeathListener deathListener;
+
+    private boolean holdStarts;
+
+    private Anycall.StartShellListener heldStart;
+
+    private volatile CallListener callListener;
+
+    interface CallListener {
+        void onCall(Call call);
+    }
+
+    static Parcel tagged(int tag) {
+        Parcel data = Parcel.obtain();
+        data.writeInt(tag);
+        return data;
+    }
+
+    /**
+     * Makes the next starts fail or succeed in order, they succeed once all are used up.
+     */
+    synchronized void setStartResults(Boolean... results) {
+        startResults.clear();
+        for (Boolean result : results) {
+            startResults.add(result);
+        }
+    }
+
+    /**
+     * Keeps starts pending until {@link #finishStart(boolean)}.
+     */
+    synchronized void setHoldStarts(boolean hold) {
+        holdStarts = hold;
+    }
+
+    void finishStart(boolean success) {
+        Anycall.StartShellListener listener;
+        synchronized (this) {
+            running = success;
+            listener = heldStart;
+            heldStart = null;
+        }
+        if (listener != null) listener.onFinish(success);
+    }
+
+    void setCallListener(CallListener listener) {
+        callListener = listener;
+    }
+
+    synchronized int getStarts() {
+        return starts;
+    }
+
+    synchronized List<Call> getCalls() {
+        return new ArrayList<>(calls);
+    }
+
+    synchronized int getTag(int index) {
+        return calls.get(index).tag;
+    }
+
+    /**
+     * Answers a call with an empty reply, or none if the result code is not 0.
+     */
+    void reply(int index, int resultCode) {
+        Call call;
+        synchronized (this) {
+            call = calls.get(index);
+        }
+        call.callback.onReply(resultCode, resultCode == 0 ? Parcel.obtain() : null);
+    }
+
+    /**
+     * Stops running, fails the calls not answered yet and reports the death.
+     */
+    void die() {
+        List<Call> pending;
+        DeathListener listener;
+        synchronized (this) {
+            running = false;
+            pending = new ArrayList<>(calls);
+            listener = deathListener;
+        }
+        for (Call call : pending) {
+            if (call.callback != null && !call.answered) call.callback.onReply(Anycall.ERROR_SESSION_DIED, null);
+        }
+        if (listener != null) listener.onDied();
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void start(@Nullable Anycall.StartShellListener listener) {
+        boolean success;
+        synchronized (this) {
+            starts++;
+            notifyAll();
+            if (holdStarts) {
+                heldStart = listener;
+                return;
+            }
+            success = startResults.isEmpty() || startResults.remove(0);
+            running = success;
+        }
+        if (listener != null) listener.onFinish(success);
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+    }
+
+    @Override
+    public void transact(String serviceName, int code, Parcel data, final ReplyCallback callback) {
+        data.setDataPosition(0);
+        final Call call = new Call(serviceName, code, data.readInt());
+        call.callback = new ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                call.answered = true;
+                callback.onReply(resultCode, reply);
+            }
+        };
+        add(call);
+    }
+
+    @Override
+    public void transact(String[] serviceNames, int[] codes, Parcel[] data,
+                         final BatchReplyCallback callback) {
+        data[0].setDataPosition(0);
+        final Call call = new Call(serviceNames[0], codes[0], data[0].readInt());
+        call.callback = new ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                call.answered = true;
+                int[] resultCodes = new int[call.batchSize];
+                Parcel[] replies = new Parcel[call.batchSize];
+                for (int i = 0; i < resultCodes.length; i++) {
+                    resultCodes[i] = resultCode;
+                }
+                callback.onReply(resultCodes, replies);
+            }
+        };
+        call.batchSize = codes.length;
+        add(call);
+    }
+
+    @Override
+    public void transactOneway(String serviceName, int code, Parcel data) {
+        data.setDataPosition(0);
+        add(new Call(serviceName, code, data.readInt()));
+    }
+
+    @Override
+    public synchronized void setDeathListener(@Nullable DeathListener listener) {
+        deathListener = listener;
+    }
+
+    @Override
+    public void getServiceCacheStats(StatsCallback callback) {
+        callback.onStats(null);
+    }
+
+    private void add(Call call) {
+        synchronized (this) {
+            calls.add(call);
+            notifyAll();
+        }
+        CallListener listener = callListener;
+        if (listener != null) listener.onCall(call);
+    }
+
+    /**
+     * Waits until at least {@code count} calls have been sent.
+     */
+    synchronized void awaitCalls(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (calls.size() < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw new AssertionError(calls.size() + " calls instead of " + count);
+            wait(remaining);
+        }
+    }
+
+    /**
+     * Waits until at least {@code count} starts have been made.
+     */
+    synchronized void awaitStarts(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (starts < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) throw new AssertionError(starts + " starts instead of " + count);
+            wait(remaining);
+        }
+    }
+
+    static class Call {
+        final String serviceName;
+
+        final int code;
+
+        final int tag;
+
+        ReplyCallback callback;
+
+        int batchSize;
+
+        volatile boolean answered;
+
+        Call(String serviceName, int code, int tag) {
+            this.serviceName = serviceName;
+            this.code = code;
+            this.tag = tag;
+        }
+    }
+}
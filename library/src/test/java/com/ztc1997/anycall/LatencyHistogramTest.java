@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsBoundTheirDurations() {
+        for (long nanos = 1; nanos < 1L << 40; nanos = nanos * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketOf(nanos);
+            assertTrue(nanos < LatencyHistogram.upperBound(bucket));
+            if (bucket > 0) assertTrue(nanos >= LatencyHistogram.upperBound(bucket - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(100000);
+        }
+        histogram.record(50000000);
+
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50000000, snapshot.getMaxNanos());
+        long p50 = snapshot.getPercentileNanos(0.5);
+        assertTrue(p50 > 100000 && p50 <= 150000);
+        assertEquals(p50, snapshot.getPercentileNanos(0.99));
+        assertEquals(50000000, snapshot.getPercentileNanos(1));
+    }
+
+    @Test
+    public void emptySnapshot() {
+        LatencySnapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getPercentileNanos(0.99));
+        assertEquals(0, snapshot.getMeanNanos());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PooledTransportTest {
+    private static final String SERVICE = "power";
+
+    private final List<FakeTransport> sessions = new ArrayList<>();
+
+    private final List<Integer> results = new ArrayList<>();
+
+    private PooledTransport pool;
+
+    @Before
+    public void setUp() {
+        pool = new PooledTransport(new Transport.Factory() {
+            @Override
+            public Transport create() {
+                FakeTransport session = new FakeTransport();
+                sessions.add(session);
+                return session;
+            }
+        }, 2);
+        pool.start(null);
+    }
+
+    @Test
+    public void prefersTheSessionOfTheServiceUntilItIsOverloaded() {
+        for (int i = 0; i < 5; i++) {
+            call(i);
+        }
+        int preferred = sessions.get(0).getCalls().size() == 5 ? 0 : 1;
+        FakeTransport other = sessions.get(1 - preferred);
+        assertEquals(0, other.getCalls().size());
+
+        // Five in flight against none is more than the slack allows
+        call(5);
+        assertEquals(1, other.getCalls().size());
+        assertEquals(5, other.getTag(0));
+
+        sessions.get(preferred).reply(0, 0);
+        sessions.get(preferred).reply(1, 0);
+        call(6);
+        assertEquals(4, sessions.get(preferred).getTag(4));
+        assertEquals(6, sessions.get(preferred).getTag(5));
+        assertEquals(1, other.getCalls().size());
+    }
+
+    @Test
+    public void keepsOnewayCallsOnThePreferredSessionInOrder() {
+        oneway(0);
+        int preferred = sessions.get(0).getCalls().isEmpty() ? 1 : 0;
+        FakeTransport other = sessions.get(1 - preferred);
+
+        // Far busier than the slack allows, calls that wait for replies move over
+        for (int i = 1; i <= 6; i++) {
+            call(i);
+        }
+        assertEquals(1, other.getCalls().size());
+
+        oneway(7);
+        oneway(8);
+        assertEquals(1, other.getCalls().size());
+        List<FakeTransport.Call> calls = sessions.get(preferred).getCalls();
+        assertEquals(0, calls.get(0).tag);
+        assertEquals(7, calls.get(calls.size() - 2).tag);
+        assertEquals(8, calls.get(calls.size() - 1).tag);
+    }
+
+    @Test
+    public void countsCallsInFlightUntilAnswered() {
+        call(0);
+        int session = sessions.get(0).getCalls().isEmpty() ? 1 : 0;
+        int[] expected = new int[2];
+        expected[session] = 1;
+        assertArrayEquals(expected, pool.getInFlight());
+
+        sessions.get(session).reply(0, 0);
+        assertArrayEquals(new int[2], pool.getInFlight());
+        assertEquals(0, (int) results.get(0));
+    }
+
+    @Test
+    public void skipsSessionsThatAreNotRunning() {
+        call(0);
+        int preferred = sessions.get(0).getCalls().isEmpty() ? 1 : 0;
+        sessions.get(preferred).die();
+        assertEquals(Anycall.ERROR_SESSION_DIED, (int) results.get(0));
+
+        call(1);
+        assertEquals(1, sessions.get(1 - preferred).getTag(0));
+        assertTrue(pool.isRunning());
+    }
+
+    @Test
+    public void restartsOnlyTheSessionsThatDied() {
+        final List<Integer> deaths = new ArrayList<>();
+        pool.setDeathListener(new Transport.DeathListener() {
+            @Override
+            public void onDied() {
+                deaths.add(0);
+            }
+        });
+        sessions.get(0).die();
+        assertEquals(1, deaths.size());
+
+        final boolean[] started = new boolean[1];
+        pool.start(new Anycall.StartShellListener() {
+            @Override
+            public void onFinish(boolean success) {
+                started[0] = success;
+            }
+        });
+        assertTrue(started[0]);
+        assertEquals(2, sessions.get(0).getStarts());
+        assertEquals(1, sessions.get(1).getStarts());
+    }
+
+    @Test
+    public void startSucceedsIfAnySessionStarts() {
+        sessions.get(0).die();
+        sessions.get(1).die();
+        sessions.get(0).setStartResults(false);
+
+        final boolean[] started = new boolean[1];
+        pool.start(new Anycall.StartShellListener() {
+            @Override
+            public void onFinish(boolean success) {
+                started[0] = success;
+            }
+        });
+        assertTrue(started[0]);
+        assertTrue(pool.isRunning());
+    }
+
+    private void oneway(int tag) {
+        Parcel data = FakeTransport.tagged(tag);
+        pool.transactOneway(SERVICE, 1, data);
+        data.recycle();
+    }
+
+    private void call(int tag) {
+        Parcel data = FakeTransport.tagged(tag);
+        pool.transact(SERVICE, 1, data, new Transport.ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                results.add(resultCode);
+            }
+        });
+        data.recycle();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueueingTransportTest {
+    private FakeTransport fake;
+
+    private QueueingTransport queue;
+
+    private final List<Integer> codes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        fake = new FakeTransport();
+        fake.setHoldStarts(true);
+        queue = new QueueingTransport(fake, new Metrics());
+    }
+
+    @Test
+    public void sendsQueuedCallsBeforeCallsMadeWhileSending() {
+        queue.start(null);
+        call(0);
+        call(1);
+        assertEquals(0, fake.getCalls().size());
+        assertEquals(Anycall.STATE_STARTING, queue.getState());
+
+        fake.setCallListener(new FakeTransport.CallListener() {
+            @Override
+            public void onCall(FakeTransport.Call call) {
+                if (call.tag != 0) return;
+                // Made while the queue is being sent
+                assertEquals(Anycall.STATE_STARTING, queue.getState());
+                call(2);
+            }
+        });
+        fake.finishStart(true);
+
+        assertEquals(3, fake.getCalls().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, fake.getTag(i));
+        }
+        assertEquals(Anycall.STATE_READY, queue.getState());
+
+        call(3);
+        assertEquals(3, fake.getTag(3));
+    }
+
+    @Test
+    public void failsQueuedCallsIfTheStartFails() {
+        queue.start(null);
+        call(0);
+        fake.finishStart(false);
+
+        assertEquals(0, fake.getCalls().size());
+        assertEquals(1, codes.size());
+        assertEquals(Anycall.ERROR_TRANSACTION_FAILED, (int) codes.get(0));
+        assertEquals(Anycall.STATE_FAILED, queue.getState());
+    }
+
+    private void call(int tag) {
+        Parcel data = FakeTransport.tagged(tag);
+        queue.transact("service", 1, data, new Transport.ReplyCallback() {
+            @Override
+            public void onReply(int resultCode, @Nullable Parcel reply) {
+                codes.add(resultCode);
+            }
+        });
+        data.recycle();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import android.os.Parcel;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+    private static final Anycall.CallMethodResultListener LISTENER = new Anycall.CallMethodResultListener() {
+        @Override
+        public boolean onResult(int resultCode, Parcel reply) {
+            return true;
+        }
+    };
+
+    @Test
+    public void onlyConfiguredMethodsHaveTtl() {
+        ResultCache cache = new ResultCache(1024);
+        assertEquals(0, cache.getTtl("appops", 3));
+
+        cache.setTtl("appops", 3, 1000);
+        assertEquals(1000, cache.getTtl("appops", 3));
+        assertEquals(0, cache.getTtl("appops", 4));
+
+        cache.setTtl("appops", 3, 0);
+        assertEquals(0, cache.getTtl("appops", 3));
+    }
+
+    @Test
+    public void expiresEntries() {
+        ResultCache cache = new ResultCache(1024);
+        ResultCache.Key key = new ResultCache.Key("power", 1, new byte[]{1});
+        assertFalse(cache.join(key, LISTENER));
+        cache.complete(key, true, new byte[]{7}, 100);
+
+        assertArrayEquals(new byte[]{7}, cache.get(new ResultCache.Key("power", 1, new byte[]{1}), 99));
+        assertNull(cache.get(key, 100));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void coalescesCallsInFlight() {
+        ResultCache cache = new ResultCache(1024);
+        ResultCache.Key key = new ResultCache.Key("power", 1, new byte[]{1});
+        assertFalse(cache.join(key, LISTENER));
+        assertTrue(cache.join(new ResultCache.Key("power", 1, new byte[]{1}), null));
+        assertFalse(cache.join(new ResultCache.Key("power", 1, new byte[]{2}), LISTENER));
+
+        List<Anycall.CallMethodResultListener> waiting = cache.complete(key, false, null, 0);
+        assertEquals(2, waiting.size());
+        assertEquals(0, cache.size());
+        assertFalse(cache.join(key, LISTENER));
+    }
+
+    @Test
+    public void doesNotCacheRepliesOfCallsSentBeforeClear() {
+        ResultCache cache = new ResultCache(1024);
+        ResultCache.Key key = new ResultCache.Key("power", 1, new byte[]{1});
+        assertFalse(cache.join(key, LISTENER));
+        assertTrue(cache.join(key, null));
+        cache.clear();
+
+        assertEquals(2, cache.complete(key, true, new byte[]{7}, 100).size());
+        assertNull(cache.get(key, 0));
+        assertEquals(0, cache.size());
+
+        assertFalse(cache.join(key, LISTENER));
+        cache.complete(key, true, new byte[]{8}, 100);
+        assertArrayEquals(new byte[]{8}, cache.get(key, 0));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ResultCache cache = new ResultCache(10);
+        ResultCache.Key a = new ResultCache.Key("a", 1, new byte[0]);
+        ResultCache.Key b = new ResultCache.Key("b", 1, new byte[0]);
+        ResultCache.Key c = new ResultCache.Key("c", 1, new byte[0]);
+        cache.join(a, LISTENER);
+        cache.complete(a, true, new byte[4], Long.MAX_VALUE);
+        cache.join(b, LISTENER);
+        cache.complete(b, true, new byte[4], Long.MAX_VALUE);
+        cache.get(a, 0);
+        cache.join(c, LISTENER);
+        cache.complete(c, true, new byte[4], Long.MAX_VALUE);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(b, 0));
+        assertArrayEquals(new byte[4], cache.get(a, 0));
+    }
+}
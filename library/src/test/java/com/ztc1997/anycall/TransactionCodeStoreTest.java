@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionCodeStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "codes");
+        Map<String, TransactionCodes.Table> tables = new HashMap<>();
+        tables.put("android.os.IPowerManager", new TransactionCodes.Table(
+                new String[]{"goToSleep", "isInteractive"}, new int[]{12, 20}));
+        tables.put("missing.IFoo", new TransactionCodes.Table(new String[0], new int[0]));
+
+        assertTrue(new TransactionCodeStore(file, "fingerprint", 25).save(tables));
+
+        Map<String, TransactionCodes.Table> loaded = new TransactionCodeStore(file, "fingerprint", 25).load();
+        assertEquals(1, loaded.size());
+        TransactionCodes.Table table = loaded.get("android.os.IPowerManager");
+        assertEquals(12, table.get("goToSleep"));
+        assertEquals(20, table.get("isInteractive"));
+        assertEquals(TransactionCodes.NOT_FOUND, table.get("reboot"));
+    }
+
+    @Test
+    public void ignoresOtherBuild() throws Exception {
+        File file = new File(folder.getRoot(), "codes");
+        Map<String, TransactionCodes.Table> tables = new HashMap<>();
+        tables.put("android.os.IPowerManager", new TransactionCodes.Table(
+                new String[]{"goToSleep"}, new int[]{12}));
+        new TransactionCodeStore(file, "fingerprint", 25).save(tables);
+
+        assertTrue(new TransactionCodeStore(file, "after-ota", 25).load().isEmpty());
+        assertTrue(new TransactionCodeStore(file, "fingerprint", 26).load().isEmpty());
+    }
+
+    @Test
+    public void ignoresCorruptFile() throws Exception {
+        File file = new File(folder.getRoot(), "codes");
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[]{0x41, 0x43, 0x54, 0x43, 0, 0, 0, 1, 0});
+        fos.close();
+
+        assertTrue(new TransactionCodeStore(file, "fingerprint", 25).load().isEmpty());
+    }
+}
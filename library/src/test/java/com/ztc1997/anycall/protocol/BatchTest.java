@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BatchTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        Batch batch = new Batch(2);
+        batch.set(0, "appops", 3, new byte[]{1, 2, 3});
+        batch.set(1, null, 64, null);
+
+        byte[] encoded = batch.encode();
+        Batch decoded = Batch.decode(encoded, 0, encoded.length);
+
+        assertEquals(2, decoded.size());
+        assertEquals("appops", decoded.services[0]);
+        assertEquals(3, decoded.codes[0]);
+        assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOfRange(decoded.payloads[0],
+                decoded.offsets[0], decoded.offsets[0] + decoded.lengths[0]));
+        assertNull(decoded.services[1]);
+        assertEquals(64, decoded.codes[1]);
+        assertNull(decoded.payloads[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedData() throws Exception {
+        Batch batch = new Batch(1);
+        batch.set(0, null, 0, new byte[16]);
+        byte[] encoded = batch.encode();
+
+        Batch.decode(encoded, 0, encoded.length - 1);
+    }
+
+    @Test
+    public void encodesIntoLargerBuffer() throws Exception {
+        Batch batch = new Batch(1);
+        batch.set(0, "power", 5, new byte[]{9, 8});
+
+        byte[] out = BufferPool.shared().acquire(batch.encodedLength());
+        int length = batch.encode(out);
+        Batch decoded = Batch.decode(out, 0, length);
+
+        assertEquals("power", decoded.services[0]);
+        assertEquals(2, decoded.lengths[0]);
+        assertEquals(9, out[decoded.offsets[0]]);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void roundsUpToPowersOfTwo() {
+        BufferPool pool = new BufferPool();
+        assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+        assertEquals(8192, pool.acquire(4097).length);
+        assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).length);
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        BufferPool pool = new BufferPool();
+        byte[] buffer = pool.acquire(10000);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(9000));
+        assertNotSame(buffer, pool.acquire(9000));
+    }
+
+    @Test
+    public void ignoresForeignBuffers() {
+        BufferPool pool = new BufferPool();
+        byte[] buffer = new byte[5000];
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(5000));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameChannelTest {
+    private static final int FAILED = 67;
+
+    @Test
+    public void matchesRepliesOutOfOrder() throws Exception {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        FrameCodec server = new FrameCodec(new ByteArrayInputStream(new byte[0]), replies);
+        server.write(2, FrameCodec.TYPE_REPLY, 0, null, new byte[]{2});
+        server.write(1, FrameCodec.TYPE_REPLY, 5, null, new byte[]{1});
+
+        FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(replies.toByteArray()), new ByteArrayOutputStream()), null, FAILED);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        assertEquals(1, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, first));
+        assertEquals(2, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, second));
+        channel.run();
+
+        assertEquals(1, first.results.size());
+        assertEquals(5, (int) first.results.get(0));
+        assertEquals(1, first.firstByte);
+        assertEquals(0, (int) second.results.get(0));
+        assertEquals(2, second.firstByte);
+        assertEquals(0, channel.getPendingCount());
+    }
+
+    @Test
+    public void dropsRepliesOfCancelledRequests() throws Exception {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        FrameCodec server = new FrameCodec(new ByteArrayInputStream(new byte[0]), replies);
+        server.write(1, FrameCodec.TYPE_REPLY, 0, null, new byte[]{1});
+        server.write(2, FrameCodec.TYPE_REPLY, 0, null, new byte[]{2});
+
+        FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(replies.toByteArray()), new ByteArrayOutputStream()), null, FAILED);
+        Recorder cancelled = new Recorder();
+        Recorder kept = new Recorder();
+        int id = channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, cancelled);
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, kept);
+        assertTrue(channel.cancel(id));
+        assertFalse(channel.cancel(id));
+        assertEquals(1, channel.getPendingCount());
+        channel.run();
+
+        assertEquals(0, cancelled.results.size());
+        assertEquals(2, kept.firstByte);
+        assertFalse(channel.cancel(2));
+    }
+
+    @Test
+    public void failsPendingRequestsWhenStreamEnds() throws Exception {
+        FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream()), null, FAILED);
+        Recorder pending = new Recorder();
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, pending);
+        channel.run();
+
+        assertEquals(FAILED, (int) pending.results.get(0));
+        assertNull(pending.payload);
+
+        Recorder late = new Recorder();
+        assertEquals(0, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, late));
+        assertEquals(0, late.results.size());
+    }
+
+    @Test
+    public void closesBeforeFailingPendingRequests() throws Exception {
+        final FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream()), null, FAILED);
+        assertTrue(channel.isOpen());
+        final boolean[] openOnFailure = {true};
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new FrameChannel.ReplyHandler() {
+            @Override
+            public void onReply(int resultCode, byte[] payload, int payloadLength) {
+                openOnFailure[0] = channel.isOpen();
+            }
+        });
+        channel.run();
+
+        assertFalse(openOnFailure[0]);
+    }
+
+    @Test
+    public void streamedReplyDoesNotHoldUpLaterReplies() throws Exception {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        FrameCodec server = new FrameCodec(new ByteArrayInputStream(new byte[0]), replies);
+        server.write(1, FrameCodec.TYPE_STREAM_REPLY, 0, null, ByteBuffer.allocate(4).putInt(3).array());
+        server.write(2, FrameCodec.TYPE_REPLY, 0, null, new byte[]{2});
+
+        PipedOutputStream bulkOut = new PipedOutputStream();
+        final FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(replies.toByteArray()), new ByteArrayOutputStream()),
+                new PipedInputStream(bulkOut), FAILED);
+        final Recorder streamed = new Recorder();
+        final CountDownLatch streamedDone = new CountDownLatch(1);
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new FrameChannel.ReplyHandler() {
+            @Override
+            public void onReply(int resultCode, byte[] payload, int payloadLength) {
+                streamed.onReply(resultCode, payload, payloadLength);
+                streamedDone.countDown();
+            }
+        });
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new FrameChannel.ReplyHandler() {
+            @Override
+            public void onReply(int resultCode, byte[] payload, int payloadLength) {
+                secondDone.countDown();
+            }
+        });
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    channel.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+
+        // The bulk payload has not been written yet
+        assertTrue(secondDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, streamedDone.getCount());
+
+        bulkOut.write(new byte[]{7, 8, 9});
+        bulkOut.close();
+        assertTrue(streamedDone.await(5, TimeUnit.SECONDS));
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(0, (int) streamed.results.get(0));
+        assertEquals(7, streamed.firstByte);
+    }
+
+    @Test
+    public void streamedRepliesFailWhenBulkStreamBreaks() throws Exception {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        FrameCodec server = new FrameCodec(new ByteArrayInputStream(new byte[0]), replies);
+        byte[] header = ByteBuffer.allocate(4).putInt(3).array();
+        server.write(1, FrameCodec.TYPE_STREAM_REPLY, 0, null, header);
+        server.write(2, FrameCodec.TYPE_STREAM_REPLY, 0, null, header);
+
+        FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(replies.toByteArray()), new ByteArrayOutputStream()),
+                new ByteArrayInputStream(new byte[]{1, 2, 3, 4}), FAILED);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, first);
+        channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, second);
+        channel.run();
+
+        // Handlers have all run once run() returns
+        assertEquals(0, (int) first.results.get(0));
+        assertEquals(1, first.firstByte);
+        assertEquals(FAILED, (int) second.results.get(0));
+        assertNull(second.payload);
+    }
+
+    @Test
+    public void requestIdsSkipZeroAndNegativesAfterWrapAround() throws Exception {
+        FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream()), null, FAILED);
+        channel.setNextId(Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new Recorder()));
+        assertEquals(1, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new Recorder()));
+        assertEquals(2, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new Recorder()));
+
+        // Ids of requests still pending are not handed out again
+        channel.setNextId(1);
+        assertEquals(3, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new Recorder()));
+        channel.setNextId(0);
+        assertEquals(4, channel.send(FrameCodec.TYPE_CALL, 1, "a", null, 0, new Recorder()));
+        assertEquals(5, channel.getPendingCount());
+    }
+
+    @Test
+    public void onewayRequestsAreNotPending() throws Exception {
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        FrameChannel channel = new FrameChannel(new FrameCodec(
+                new ByteArrayInputStream(new byte[0]), requests), null, FAILED);
+        assertTrue(channel.sendOneway(FrameCodec.TYPE_ONEWAY, 0, null, new byte[]{1, 2}, 2));
+        assertEquals(0, channel.getPendingCount());
+
+        FrameCodec server = new FrameCodec(new ByteArrayInputStream(requests.toByteArray()), new ByteArrayOutputStream());
+        assertTrue(server.read());
+        assertEquals(FrameCodec.TYPE_ONEWAY, server.getType());
+        assertEquals(0, server.getId());
+        assertEquals(2, server.getPayloadLength());
+
+        channel.close();
+        assertFalse(channel.sendOneway(FrameCodec.TYPE_ONEWAY, 0, null, null, 0));
+    }
+
+    private static class Recorder implements FrameChannel.ReplyHandler {
+        final List<Integer> results = new ArrayList<>();
+
+        byte[] payload;
+
+        int firstByte = -1;
+
+        @Override
+        public void onReply(int resultCode, byte[] payload, int payloadLength) {
+            results.add(resultCode);
+            this.payload = payload;
+            if (payload != null && payloadLength > 0) firstByte = payload[0];
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCodecTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FrameCodec writer = new FrameCodec(new ByteArrayInputStream(new byte[0]), bos);
+        byte[] payload = {1, 2, 3, 4, 5};
+        writer.write(42, FrameCodec.TYPE_CALL, 7, "power", payload);
+        writer.write(42, FrameCodec.TYPE_REPLY, 0, null, null);
+
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(bos.toByteArray()), new ByteArrayOutputStream());
+        assertTrue(reader.read());
+        assertEquals(42, reader.getId());
+        assertEquals(FrameCodec.TYPE_CALL, reader.getType());
+        assertEquals(7, reader.getCode());
+        assertEquals("power", reader.getService());
+        assertArrayEquals(payload, Arrays.copyOf(reader.getPayload(), reader.getPayloadLength()));
+
+        assertTrue(reader.read());
+        assertEquals(FrameCodec.TYPE_REPLY, reader.getType());
+        assertNull(reader.getService());
+        assertEquals(0, reader.getPayloadLength());
+
+        assertFalse(reader.read());
+    }
+
+    @Test
+    public void growsBufferForLargePayload() throws Exception {
+        byte[] payload = new byte[100000];
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) i;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new FrameCodec(new ByteArrayInputStream(new byte[0]), bos)
+                .write(1, FrameCodec.TYPE_REPLY, 0, null, payload);
+
+        FrameCodec reader = new FrameCodec(new ByteArrayInputStream(bos.toByteArray()), new ByteArrayOutputStream());
+        assertTrue(reader.read());
+        assertEquals(payload.length, reader.getPayloadLength());
+        assertArrayEquals(payload, Arrays.copyOf(reader.getPayload(), reader.getPayloadLength()));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidLength() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new DataOutputStream(bos).writeInt(-1);
+
+        new FrameCodec(new ByteArrayInputStream(bos.toByteArray()), new ByteArrayOutputStream()).read();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2017 Alex Zhang aka. ztc1997
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.ztc1997.anycall.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceWriterTest {
+
+    @Test
+    public void readsBackWhatWasWritten() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TraceWriter writer = new TraceWriter(out);
+        writer.write(new TraceRecord(2000, 300, "android.os.IPowerManager", "power", "goToSleep",
+                12, 0, new byte[]{1, 2, 3}, null));
+        writer.write(new TraceRecord(1000, 5000000000L, "android.os.IPowerManager", "power", "reboot",
+                20, -1, null, new byte[0]));
+        writer.close();
+
+        List<TraceRecord> records = new TraceReader(new ByteArrayInputStream(out.toByteArray())).readAll();
+        assertEquals(2, records.size());
+
+        TraceRecord first = records.get(0);
+        assertEquals(1000, first.startNanos);
+        assertEquals(5000000000L, first.durationNanos);
+        assertEquals("reboot", first.methodName);
+        assertEquals(-1, first.resultCode);
+        assertNull(first.data);
+        assertArrayEquals(new byte[0], first.reply);
+
+        TraceRecord second = records.get(1);
+        assertEquals("android.os.IPowerManager", second.className);
+        assertEquals("power", second.serviceName);
+        assertEquals(12, second.code);
+        assertArrayEquals(new byte[]{1, 2, 3}, second.data);
+        assertNull(second.reply);
+    }
+
+    @Test
+    public void readsBackOnewayCalls() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TraceWriter writer = new TraceWriter(out);
+        writer.write(new TraceRecord(10, "android.os.IPowerManager", "power", "userActivity", 7,
+                new byte[]{4}));
+        writer.write(new TraceRecord(20, 5, "a", "b", "c", 1, 3, null, null));
+        writer.close();
+
+        TraceReader reader = new TraceReader(new ByteArrayInputStream(out.toByteArray()));
+        TraceRecord oneway = reader.read();
+        assertTrue(oneway.oneway);
+        assertEquals(10, oneway.startNanos);
+        assertEquals("userActivity", oneway.methodName);
+        assertEquals(7, oneway.code);
+        assertArrayEquals(new byte[]{4}, oneway.data);
+        assertNull(oneway.reply);
+
+        TraceRecord call = reader.read();
+        assertFalse(call.oneway);
+        assertEquals(3, call.resultCode);
+        assertNull(reader.read());
+    }
+
+    @Test
+    public void stopsAtTruncatedRecord() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TraceWriter writer = new TraceWriter(out);
+        writer.write(new TraceRecord(0, 1, "a", "b", "c", 1, 0, null, null));
+        writer.flush();
+        int complete = out.size();
+        writer.write(new TraceRecord(5, 1, "a", "b", "c", 1, 0, new byte[16], null));
+        writer.close();
+
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), complete + 4);
+        TraceReader reader = new TraceReader(new ByteArrayInputStream(bytes));
+        assertEquals(0, reader.read().startNanos);
+        assertNull(reader.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        new TraceReader(new ByteArrayInputStream(new byte[]{'P', 'K', 3, 4, 0, 0, 0, 0}));
+    }
+}